@@ -0,0 +1,348 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.UUID;
+
+import static android.bluetooth.BluetoothGatt.GATT_FAILURE;
+import static android.bluetooth.BluetoothGatt.GATT_SUCCESS;
+import static android.bluetooth.BluetoothProfile.STATE_CONNECTED;
+import static android.bluetooth.BluetoothProfile.STATE_DISCONNECTED;
+import static android.bluetooth.le.ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+
+/**
+ * {@link TempcTransport} on top of the Android BLE stack. Binder callbacks are copied into
+ * pooled events and re-posted to the event loop.
+ */
+final class AndroidBleTransport implements TempcTransport {
+    private static final String TAG = "AndroidBleTransport";
+    private static final int CONNECTION_STATE = 0, SERVICES_DISCOVERED = 1, READ = 2, WRITE = 3, CHANGED = 4, DESCRIPTOR_WRITE = 5, MTU_CHANGED = 6;
+    private static final int MAX_POOLED_EVENTS = 16;
+    private final Context context;
+    private final EventLoop loop;
+    private BluetoothAdapter bluetoothAdapter;
+    private BluetoothLeScanner scanner;
+    private ScanListener scanListener;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            if (callbackType != CALLBACK_TYPE_MATCH_LOST) {
+                final String address = result.getDevice().getAddress();
+                loop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (scanListener != null) {
+                            scanListener.onDeviceFound(address);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.w(TAG, "Scan failed " + errorCode);
+            loop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (scanListener != null) {
+                        ScanListener listener = scanListener;
+                        stopScan();
+                        listener.onScanFailed("Scan failed, errorCode " + errorCode);
+                    }
+                }
+            });
+        }
+    };
+
+    AndroidBleTransport(Context context, EventLoop loop) {
+        this.context = context.getApplicationContext();
+        this.loop = loop;
+    }
+
+    @Override
+    public boolean startScan(ScanListener listener) {
+        if (scanner == null) {
+            BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+            bluetoothAdapter = bluetoothManager.getAdapter();
+            if (!bluetoothAdapter.isEnabled()) {
+                Log.d(TAG, "Enabling BT...");
+                if (!bluetoothAdapter.enable()) {
+                    listener.onScanFailed("Enabling BT failed");
+                    return false;
+                }
+            }
+            scanner = bluetoothAdapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                listener.onScanFailed("Cannot get LE scanner");
+                return false;
+            }
+        }
+        stopScan();
+        scanListener = listener;
+        ScanFilter filter = new ScanFilter.Builder().setDeviceName(TempcProfile.DEVICE_NAME).build();
+        ScanSettings settings = new ScanSettings.Builder().build();
+        scanner.startScan(Collections.singletonList(filter), settings, scanCallback);
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        if (scanListener != null) {
+            scanListener = null;
+            scanner.stopScan(scanCallback);
+        }
+    }
+
+    @Override
+    public Link connect(String address, LinkCallback callback) {
+        if (bluetoothAdapter == null) {
+            bluetoothAdapter = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
+        }
+        AndroidLink link = new AndroidLink(callback);
+        // a direct connection fails with a status in ~30 s when the device is out of range,
+        // the caller retries with its own backoff instead of leaving it to autoConnect
+        link.gatt = bluetoothAdapter.getRemoteDevice(address).connectGatt(context, false, link.gattCallback, BluetoothDevice.TRANSPORT_LE);
+        if (link.gatt == null) {
+            // Bluetooth is off, no callback comes for this attempt
+            Log.w(TAG, "connectGatt failed for " + address);
+            AndroidLink.GattEvent event = link.obtain(CONNECTION_STATE, null, GATT_FAILURE);
+            event.newState = STATE_DISCONNECTED;
+            loop.post(event);
+        }
+        return link;
+    }
+
+    private final class AndroidLink implements Link {
+        private final LinkCallback callback;
+        private BluetoothGatt gatt;
+        private BluetoothGattService service;
+
+        private final ArrayDeque<GattEvent> pool = new ArrayDeque<>();
+
+        private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                Log.d(TAG, "onConnectionStateChange " + status + " state " + newState);
+                GattEvent event = obtain(CONNECTION_STATE, null, status);
+                event.newState = newState;
+                loop.post(event);
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                Log.d(TAG, "onServicesDiscovered " + status);
+                loop.post(obtain(SERVICES_DISCOVERED, null, status));
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                GattEvent event = obtain(READ, characteristic.getUuid(), status);
+                event.setValue(characteristic.getValue());
+                loop.post(event);
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                loop.post(obtain(WRITE, characteristic.getUuid(), status));
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                GattEvent event = obtain(CHANGED, characteristic.getUuid(), GATT_SUCCESS);
+                event.setValue(characteristic.getValue());
+                loop.post(event);
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                Log.d(TAG, "onDescriptorWrite " + status);
+                loop.post(obtain(DESCRIPTOR_WRITE, descriptor.getCharacteristic().getUuid(), status));
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                Log.d(TAG, "onMtuChanged " + mtu + " status " + status);
+                GattEvent event = obtain(MTU_CHANGED, null, status);
+                event.mtu = mtu;
+                loop.post(event);
+            }
+        };
+
+        /**
+         * GATT callback on its way from a binder thread to the event loop. Events go back to
+         * the pool after they run and keep their value buffers, so steady-state sampling
+         * doesn't allocate.
+         */
+        private final class GattEvent implements Runnable {
+            int type, status, newState, mtu;
+            UUID uuid;
+            byte[] value = new byte[TempcCodec.FLOAT_SIZE];
+            boolean hasValue;
+
+            void setValue(byte[] source) {
+                hasValue = source != null;
+                if (hasValue) {
+                    if (value.length != source.length) {
+                        value = new byte[source.length];
+                    }
+                    System.arraycopy(source, 0, value, 0, source.length);
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    dispatch(this);
+                } finally {
+                    recycle(this);
+                }
+            }
+        }
+
+        AndroidLink(LinkCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return gatt != null && gatt.discoverServices();
+        }
+
+        @Override
+        public boolean hasCharacteristic(UUID uuid) {
+            return characteristic(uuid) != null;
+        }
+
+        @Override
+        public boolean supportsNotifications(UUID uuid) {
+            BluetoothGattCharacteristic characteristic = characteristic(uuid);
+            return characteristic != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0
+                    && characteristic.getDescriptor(TempcProfile.CLIENT_CHARACTERISTIC_CONFIG_UUID) != null;
+        }
+
+        @Override
+        public boolean read(UUID uuid) {
+            BluetoothGattCharacteristic characteristic = characteristic(uuid);
+            return characteristic != null && gatt.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean write(UUID uuid, byte[] value) {
+            BluetoothGattCharacteristic characteristic = characteristic(uuid);
+            return characteristic != null && characteristic.setValue(value) && gatt.writeCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean enableNotifications(UUID uuid) {
+            BluetoothGattCharacteristic characteristic = characteristic(uuid);
+            if (characteristic == null || !gatt.setCharacteristicNotification(characteristic, true)) {
+                return false;
+            }
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(TempcProfile.CLIENT_CHARACTERISTIC_CONFIG_UUID);
+            return descriptor != null && descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) && gatt.writeDescriptor(descriptor);
+        }
+
+        @Override
+        public void disableNotifications(UUID uuid) {
+            BluetoothGattCharacteristic characteristic = characteristic(uuid);
+            if (characteristic != null) {
+                gatt.setCharacteristicNotification(characteristic, false);
+            }
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return gatt != null && gatt.requestMtu(mtu);
+        }
+
+        @Override
+        public void close() {
+            if (gatt != null) {
+                gatt.disconnect();
+                gatt.close();
+                gatt = null;
+            }
+            service = null;
+        }
+
+        private void dispatch(GattEvent event) {
+            boolean success = event.status == GATT_SUCCESS;
+            byte[] value = event.hasValue ? event.value : null;
+            switch (event.type) {
+                case CONNECTION_STATE:
+                    if (success && event.newState == STATE_CONNECTED) {
+                        callback.onConnected();
+                    } else {
+                        callback.onDisconnected(event.status);
+                    }
+                    break;
+                case SERVICES_DISCOVERED:
+                    service = success && gatt != null ? gatt.getService(TempcProfile.SERVICE_UUID) : null;
+                    callback.onServicesDiscovered(service != null);
+                    break;
+                case READ:
+                    callback.onRead(event.uuid, success, value);
+                    break;
+                case WRITE:
+                    callback.onWrite(event.uuid, success);
+                    break;
+                case CHANGED:
+                    callback.onNotification(event.uuid, value);
+                    break;
+                case DESCRIPTOR_WRITE:
+                    callback.onNotificationsEnabled(event.uuid, success);
+                    break;
+                case MTU_CHANGED:
+                    callback.onMtuChanged(event.mtu, success);
+                    break;
+            }
+        }
+
+        private GattEvent obtain(int type, UUID uuid, int status) {
+            GattEvent event;
+            synchronized (pool) {
+                event = pool.poll();
+            }
+            if (event == null) {
+                event = new GattEvent();
+            }
+            event.type = type;
+            event.uuid = uuid;
+            event.status = status;
+            event.hasValue = false;
+            return event;
+        }
+
+        private void recycle(GattEvent event) {
+            event.uuid = null;
+            synchronized (pool) {
+                if (pool.size() < MAX_POOLED_EVENTS) {
+                    pool.add(event);
+                }
+            }
+        }
+
+        private BluetoothGattCharacteristic characteristic(UUID uuid) {
+            return gatt != null && service != null ? service.getCharacteristic(uuid) : null;
+        }
+    }
+}
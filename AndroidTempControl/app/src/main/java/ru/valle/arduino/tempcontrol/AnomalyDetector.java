@@ -0,0 +1,195 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the temperature feed of one controller as samples come. Every sample updates rolling
+ * statistics in constant time and memory: exponentially weighted mean and variance of the
+ * temperature, smoothed slope and the time the setpoint was reached, so the history is never
+ * rescanned however long the session runs.
+ */
+final class AnomalyDetector {
+    /**
+     * getTempCByIndex() of the DallasTemperature library returns this when the sensor doesn't answer.
+     */
+    static final float DEVICE_DISCONNECTED_C = -127;
+    /**
+     * Sensor disconnected, out of its range or jumping implausibly.
+     */
+    static final int SENSOR_FAULT = 1;
+    /**
+     * Well above the setpoint and still rising, e.g. the relay is stuck closed.
+     */
+    static final int RUNAWAY = 1 << 1;
+    /**
+     * Well below the setpoint and not rising, e.g. the relay is stuck open or the heater is off.
+     */
+    static final int STALL = 1 << 2;
+    /**
+     * The setpoint was reached, but the temperature left it for a while.
+     */
+    static final int OFF_SETPOINT = 1 << 3;
+
+    private static final float MIN_VALID_C = -55, MAX_VALID_C = 125;
+    private static final int FAULTY_READINGS_FOR_ALERT = 3;
+    private static final float SPIKE_MIN_C = 5, SPIKE_SIGMAS = 8;
+    private static final long MEAN_TIME_CONSTANT_MS = TimeUnit.MINUTES.toMillis(2);
+    private static final long SLOPE_TIME_CONSTANT_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_GAP_MS = TimeUnit.MINUTES.toMillis(2);
+    private static final float SETPOINT_BAND_C = 1;
+    private static final float RUNAWAY_EXCESS_C = 5, RUNAWAY_SLOPE_C_PER_MIN = 0.1f;
+    private static final float STALL_DEFICIT_C = 3, STALL_SLOPE_C_PER_MIN = 0.05f;
+    private static final long STALL_TIME_MS = TimeUnit.MINUTES.toMillis(20);
+    private static final float OFF_SETPOINT_C = 3;
+    private static final long OFF_SETPOINT_TIME_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private long lastTime = Long.MIN_VALUE;
+    private float lastTemperature, lastRejected;
+    private boolean restartStatistics;
+    private long statsSince;
+    private double mean, variance, slope;
+    private int faultyReadings;
+    private float setpoint = Float.NaN;
+    private long setpointReachedAt = -1, offSetpointSince = -1, stallSince = -1;
+    private int alerts;
+
+    /**
+     * @param time               sample time, ms, monotonic
+     * @param desiredTemperature setpoint at that time, at most MIN_VALID_C if unknown
+     * @return alerts raised by the sample and earlier ones, a combination of the flags above
+     */
+    int update(long time, float temperature, float desiredTemperature) {
+        if (desiredTemperature != setpoint) {
+            setpoint = desiredTemperature;
+            setpointReachedAt = -1;
+            offSetpointSince = -1;
+            stallSince = -1;
+        }
+        if (isFaulty(time, temperature)) {
+            lastRejected = temperature;
+            if (++faultyReadings >= FAULTY_READINGS_FOR_ALERT) {
+                alerts |= SENSOR_FAULT;
+            }
+            return alerts;
+        }
+        faultyReadings = 0;
+        updateStatistics(time, temperature);
+        alerts = 0;
+        if (setpoint > MIN_VALID_C) {
+            checkSetpoint(time, temperature);
+        }
+        return alerts;
+    }
+
+    int alerts() {
+        return alerts;
+    }
+
+    /**
+     * @return smoothed temperature, C
+     */
+    double mean() {
+        return mean;
+    }
+
+    /**
+     * @return standard deviation of the temperature around the mean, C
+     */
+    double standardDeviation() {
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * @return smoothed rate of change, C per minute
+     */
+    double slope() {
+        return slope;
+    }
+
+    /**
+     * @return ms since the current setpoint was reached, -1 if it wasn't
+     */
+    long timeAtSetpoint() {
+        return setpointReachedAt < 0 ? -1 : lastTime - setpointReachedAt;
+    }
+
+    /**
+     * @return false for disconnected sensor readings and temperatures a DS18B20 can't measure
+     */
+    static boolean isInSensorRange(float temperature) {
+        return temperature != DEVICE_DISCONNECTED_C && temperature >= MIN_VALID_C && temperature <= MAX_VALID_C;
+    }
+
+    private boolean isFaulty(long time, float temperature) {
+        if (!isInSensorRange(temperature)) {
+            return true;
+        }
+        // the contents of a pot can't jump by degrees between samples, a garbled reading can
+        double deviation = Math.abs(temperature - mean);
+        if (!hasContinuousStatistics(time) || deviation <= SPIKE_MIN_C || deviation <= SPIKE_SIGMAS * standardDeviation()) {
+            return false;
+        }
+        // unless the jump repeats, e.g. the probe was moved into the pot
+        if (faultyReadings > 0 && Math.abs(temperature - lastRejected) <= SPIKE_MIN_C) {
+            restartStatistics = true;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasContinuousStatistics(long time) {
+        return !restartStatistics && lastTime != Long.MIN_VALUE && time > lastTime && time - lastTime <= MAX_GAP_MS;
+    }
+
+    private void updateStatistics(long time, float temperature) {
+        if (!hasContinuousStatistics(time)) {
+            restartStatistics = false;
+            statsSince = time;
+            mean = temperature;
+            variance = 0;
+            slope = 0;
+        } else {
+            long dt = time - lastTime;
+            double alpha = 1 - Math.exp(-(double) dt / MEAN_TIME_CONSTANT_MS);
+            double diff = temperature - mean;
+            double increment = alpha * diff;
+            mean += increment;
+            variance = (1 - alpha) * (variance + diff * increment);
+            double slopeAlpha = 1 - Math.exp(-(double) dt / SLOPE_TIME_CONSTANT_MS);
+            slope += slopeAlpha * ((temperature - lastTemperature) * TimeUnit.MINUTES.toMillis(1) / dt - slope);
+        }
+        lastTime = time;
+        lastTemperature = temperature;
+    }
+
+    private void checkSetpoint(long time, float temperature) {
+        float error = temperature - setpoint;
+        if (setpointReachedAt < 0 && Math.abs(error) <= SETPOINT_BAND_C) {
+            setpointReachedAt = time;
+        }
+        boolean slopeSettled = time - statsSince >= SLOPE_TIME_CONSTANT_MS;
+        if (slopeSettled && error > RUNAWAY_EXCESS_C && slope > RUNAWAY_SLOPE_C_PER_MIN) {
+            alerts |= RUNAWAY;
+        }
+        if (slopeSettled && error < -STALL_DEFICIT_C && slope < STALL_SLOPE_C_PER_MIN) {
+            if (stallSince < 0) {
+                stallSince = time;
+            }
+            if (time - stallSince >= STALL_TIME_MS) {
+                alerts |= STALL;
+            }
+        } else {
+            stallSince = -1;
+        }
+        if (setpointReachedAt >= 0 && Math.abs(error) > OFF_SETPOINT_C) {
+            if (offSetpointSince < 0) {
+                offSetpointSince = time;
+            }
+            if (time - offSetpointSince >= OFF_SETPOINT_TIME_MS) {
+                alerts |= OFF_SETPOINT;
+            }
+        } else {
+            offSetpointSince = -1;
+        }
+    }
+}
@@ -3,31 +3,91 @@ package ru.valle.arduino.tempcontrol;
 import static ru.valle.arduino.tempcontrol.MainActivity.MIN_TEMPERATURE;
 
 final class ArduinoState {
+    final String address;
     final String message;
     final float desiredTemperature;
-    final float[] deltaSeconds;
-    final float[] temperatures;
-    final int position, count;
+    final float temperature;
+    final TimeSeries.Snapshot history;
+    final Downsampler downsampled;
+    /**
+     * Settings read from the controller, null if unknown or not supported by its sketch.
+     */
+    final TempcConfig config;
+    /**
+     * Last control tick of the controller, null if unknown or not reported by its sketch.
+     */
+    final PidTelemetry telemetry;
+    /**
+     * Relay duty cycle and integral term of past control ticks, %.
+     */
+    final TimeSeries.Snapshot dutyCycle, integralTerm;
+    /**
+     * Combination of {@link AnomalyDetector} flags raised by the latest samples.
+     */
+    final int alerts;
+    /**
+     * Fitted rate of change, C per minute, and minutes to reach the setpoint;
+     * {@link SetpointEstimator#UNKNOWN} if not estimated.
+     */
+    final float heatingRate, minutesToSetpoint;
+    /**
+     * Program loaded on the controller and its progress, null if unknown or not supported by its sketch.
+     */
+    final CookProgram program;
+    final ProgramStatus programStatus;
 
-    public ArduinoState(int position, int count, float[] temperatures, float[] deltaSeconds, float desiredTemperature) {
-        this(position, count, temperatures, deltaSeconds, desiredTemperature, null);
+    public ArduinoState(String address, float temperature, float desiredTemperature, TimeSeries.Snapshot history, Downsampler downsampled) {
+        this(address, temperature, desiredTemperature, history, downsampled, null, null, null, null, 0,
+                SetpointEstimator.UNKNOWN, SetpointEstimator.UNKNOWN, null, null, null);
+    }
+
+    public ArduinoState(String address, float temperature, float desiredTemperature, TimeSeries.Snapshot history, Downsampler downsampled,
+                        TempcConfig config, PidTelemetry telemetry, TimeSeries.Snapshot dutyCycle, TimeSeries.Snapshot integralTerm, int alerts,
+                        float heatingRate, float minutesToSetpoint, CookProgram program, ProgramStatus programStatus) {
+        this(address, temperature, desiredTemperature, history, downsampled, config, telemetry, dutyCycle, integralTerm, alerts,
+                heatingRate, minutesToSetpoint, program, programStatus, null);
     }
 
     public ArduinoState(String message) {
-        this(-1, 0, null, null, MIN_TEMPERATURE, message);
+        this(null, message);
+    }
+
+    public ArduinoState(String address, String message) {
+        this(address, MIN_TEMPERATURE - 1, MIN_TEMPERATURE, null, null, null, null, null, null, 0,
+                SetpointEstimator.UNKNOWN, SetpointEstimator.UNKNOWN, null, null, message);
 
     }
 
-    public ArduinoState(int position, int count, float[] temperatures, float[] deltaSeconds, float desiredTemperature, String errorMessage) {
-        this.position = position;
-        this.count = count;
-        this.temperatures = temperatures;
-        this.deltaSeconds = deltaSeconds;
+    public ArduinoState(String address, float temperature, float desiredTemperature, TimeSeries.Snapshot history, Downsampler downsampled,
+                        TempcConfig config, PidTelemetry telemetry, TimeSeries.Snapshot dutyCycle, TimeSeries.Snapshot integralTerm, int alerts,
+                        float heatingRate, float minutesToSetpoint, CookProgram program, ProgramStatus programStatus,
+                        String errorMessage) {
+        this.address = address;
+        this.temperature = temperature;
         this.desiredTemperature = desiredTemperature;
+        this.history = history;
+        this.downsampled = downsampled;
+        this.config = config;
+        this.telemetry = telemetry;
+        this.dutyCycle = dutyCycle;
+        this.integralTerm = integralTerm;
+        this.alerts = alerts;
+        this.heatingRate = heatingRate;
+        this.minutesToSetpoint = minutesToSetpoint;
+        this.program = program;
+        this.programStatus = programStatus;
         this.message = errorMessage;
     }
 
+    /**
+     * @return this state with a connection status, the values stay as last known
+     */
+    ArduinoState withMessage(String message) {
+        return new ArduinoState(address, temperature, desiredTemperature, history, downsampled, config, telemetry, dutyCycle, integralTerm,
+                alerts, heatingRate, minutesToSetpoint, program, programStatus, message);
+    }
+
     public float getTemperature() {
-        return temperatures != null ? temperatures[position] : MIN_TEMPERATURE - 1;
+        return temperature;
     }
 }
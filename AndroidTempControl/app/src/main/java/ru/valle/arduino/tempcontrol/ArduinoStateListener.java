@@ -1,175 +1,192 @@
 package ru.valle.arduino.tempcontrol;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
-import android.content.Context;
-import android.content.Loader;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.SystemClock;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
-import static android.bluetooth.BluetoothAdapter.STATE_CONNECTED;
-import static android.bluetooth.BluetoothGatt.GATT_SUCCESS;
-import static android.bluetooth.le.ScanSettings.CALLBACK_TYPE_MATCH_LOST;
 import static ru.valle.arduino.tempcontrol.MainActivity.MIN_TEMPERATURE;
+import static ru.valle.arduino.tempcontrol.TempcProfile.CLIENT_CHARACTERISTIC_CONFIG_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.CONFIG_CHARACTERISTIC_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.HISTORY_CHARACTERISTIC_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.PROGRAM_CHARACTERISTIC_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.PROGRAM_STATUS_CHARACTERISTIC_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.SERVICE_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.SET_TEMPERATURE_CHARACTERISTIC_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.STATE_CHARACTERISTIC_UUID;
+import static ru.valle.arduino.tempcontrol.TempcProfile.TELEMETRY_CHARACTERISTIC_UUID;
 
-final class ArduinoStateListener extends Loader<ArduinoState> {
+/**
+ * Connection to one Tempc controller: GATT session, history and log of that device.
+ */
+final class ArduinoStateListener {
     private static final String TAG = "ArduinoStateListener";
-    private static final UUID STATE_CHARACTERISTIC_UUID = UUID.fromString("19B10011-E8F2-537E-4F6C-D104768A1214");
-    private static final UUID SET_TEMPERATURE_CHARACTERISTIC_UUID = UUID.fromString("19B10012-E8F2-537E-4F6C-D104768A1214");
-    private BluetoothLeScanner scanner;
-    private BluetoothDevice arduino;
-    private BluetoothGatt gatt;
-    private BluetoothGattCharacteristic stateCharacteristic, setTemperatureCharacteristic;
-    private boolean scanning;
+    private static final long POLL_INTERVAL_MS = 5000;
+    private static final long SETPOINT_REFRESH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long GATT_OPERATION_TIMEOUT_MS = 3000;
+    private static final int GATT_OPERATION_ATTEMPTS = 3;
+    /**
+     * A direct connection fails by itself in ~30 s, this is for attempts that never call back.
+     */
+    private static final long CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(45);
+    private static final long RECONNECT_INITIAL_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_STALE_READS = 5;
+    private static final int TELEMETRY_CAPACITY = 2048;
+    private final TempcTransport transport;
+    private final EventLoop loop;
+    private final String address;
+    private final ConnectionManager.Listener listener;
+    private TempcTransport.Link link;
+    private LinkListener linkListener;
+    private boolean closed;
     private float temperature = Float.MIN_VALUE;
-    private float desiredTemperature = Float.MIN_VALUE;
-    private boolean shouldSendDesiredTemperature;
-    private long desiredTemperatureReadTs;
-    private static final Handler handler = new Handler(Looper.getMainLooper());
-    private final ScanCallback scanCallback = new ScanCallback() {
-        @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            if (callbackType != CALLBACK_TYPE_MATCH_LOST) {
-                Log.d(TAG, "found " + result);
-                final BluetoothDevice device = result.getDevice();
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!isAbandoned() && !isReset()) {
-                            stopScan();
-                            arduino = device;
-                            connectGatt();
-                        }
-                    }
-                });
-            }
+    /**
+     * Last known setpoint, kept across reconnects; samples are recorded once it is known.
+     */
+    private float desiredTemperature = MIN_TEMPERATURE;
+    /**
+     * Set while the setpoint chosen here hasn't been written to the device, which then keeps its
+     * own until the next connection writes it.
+     */
+    private boolean setpointDirty;
+    private boolean notificationsEnabled;
+    private final GattQueue queue;
+    private final Backoff reconnectBackoff = new Backoff(RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS, new Random());
+    private long disconnectedAt = -1;
+    private long lastSampleAt = -1;
+    private final AnomalyDetector anomalies = new AnomalyDetector();
+    private int alerts;
+    private final Metrics.Counter reconnects, samplesReceived, unexpectedNotifications, alertsRaised;
+    private final Metrics.Histogram reconnectTime, sampleInterval, snapshotRestoreTime, historyRestoreTime;
+    private final File snapshotFile;
+    /**
+     * State saved by the previous session, shown until the log is loaded.
+     */
+    private ArduinoState lastKnown;
+    /**
+     * Connection status while not sampling, null when samples come.
+     */
+    private String status;
+
+    private final class LinkListener implements TempcTransport.LinkCallback {
+        private boolean isCurrent() {
+            return !closed && linkListener == this;
         }
 
         @Override
-        public void onScanFailed(final int errorCode) {
-            super.onScanFailed(errorCode);
-            Log.w(TAG, "Scan failed " + errorCode);
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    stopScan();
-                    deliverResult(new ArduinoState("Scan failed, errorCode " + errorCode));
-                }
-            });
+        public void onConnected() {
+            if (isCurrent()) {
+                loop.remove(connectTimeoutCallback);
+                discoverServices();
+            }
         }
-    };
 
-    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
         @Override
-        public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
-            Log.d(TAG, "onConnectionStateChange " + status + " state " + newState);
-            if (status == GATT_SUCCESS && newState == STATE_CONNECTED) {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        ArduinoStateListener.this.gatt = gatt;
-                        discoverServices();
-                    }
-                });
-            } else {
-                handler.postDelayed(connectGattCallback, 1000);
+        public void onDisconnected(int status) {
+            Log.d(TAG, "onDisconnected " + status);
+            if (isCurrent()) {
+                scheduleReconnect();
             }
         }
 
         @Override
-        public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
-            Log.d(TAG, "onServicesDiscovered " + status);
-            if (status == GATT_SUCCESS) {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        BluetoothGattService gattService = gatt.getService(UUID.fromString("19B10010-E8F2-537E-4F6C-D104768A1214"));
-                        if (gattService == null) {
-                            Log.e(TAG, "Gatt service not found");
-                            deliverResult(new ArduinoState("Gatt service not found"));
-                        } else {
-                            deliverResult(new ArduinoState("Reading"));
-                            ArduinoStateListener.this.stateCharacteristic = gattService.getCharacteristic(STATE_CHARACTERISTIC_UUID);
-                            ArduinoStateListener.this.setTemperatureCharacteristic = gattService.getCharacteristic(SET_TEMPERATURE_CHARACTERISTIC_UUID);
-                            dataTransmit();
-                        }
-
-                    }
-                });
+        public void onServicesDiscovered(boolean success) {
+            Log.d(TAG, "onServicesDiscovered " + success);
+            if (!isCurrent()) {
+                return;
+            }
+            if (!success) {
+                loop.postDelayed(discoverServicesCallback, 1000);
+            } else if (!link.hasCharacteristic(STATE_CHARACTERISTIC_UUID)) {
+                Log.e(TAG, "Gatt service not found");
+                deliverStatus("Gatt service not found");
             } else {
-                handler.postDelayed(discoverServicesCallback, 1000);
+                deliverStatus("Reading");
+                onReconnected();
+                startDataTransmit();
             }
         }
 
         @Override
-        public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-            handler.post(new Runnable() {
-                @Override
-
-                public void run() {
-                    if (!isAbandoned() && !isReset()) {
-                        if (status == GATT_SUCCESS) {
-                            byte[] value = characteristic.getValue();
-                            if (value != null && value.length > 0) {
-                                if (characteristic.getUuid().equals(STATE_CHARACTERISTIC_UUID)) {
-                                    temperature = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-                                } else if (characteristic.getUuid().equals(SET_TEMPERATURE_CHARACTERISTIC_UUID)) {
-                                    desiredTemperature = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-                                }
-                                onTemperatureRead(temperature, desiredTemperature);
-                            } else {
-                                Log.w(TAG, "stateCharacteristic has no value");
-                            }
-                        }
-                        handler.postDelayed(dataTransmitCallback, 5000);
+        public void onRead(UUID uuid, boolean success, byte[] value) {
+            if (!isCurrent()) {
+                return;
+            }
+            if (success) {
+                if (uuid.equals(HISTORY_CHARACTERISTIC_UUID)) {
+                    onHistoryRead(value);
+                } else if (uuid.equals(CONFIG_CHARACTERISTIC_UUID)) {
+                    onConfigRead(value);
+                } else if (uuid.equals(TELEMETRY_CHARACTERISTIC_UUID)) {
+                    onTelemetry(PidTelemetry.decode(value));
+                } else if (uuid.equals(PROGRAM_CHARACTERISTIC_UUID)) {
+                    onProgramRead(value);
+                } else if (uuid.equals(PROGRAM_STATUS_CHARACTERISTIC_UUID)) {
+                    onProgramStatus(ProgramStatus.decode(value));
+                } else if (TempcCodec.isFloat(value)) {
+                    if (uuid.equals(STATE_CHARACTERISTIC_UUID)) {
+                        temperature = TempcCodec.decodeFloat(value, 0);
+                    } else if (uuid.equals(SET_TEMPERATURE_CHARACTERISTIC_UUID) && !setpointDirty) {
+                        desiredTemperature = TempcCodec.decodeFloat(value, 0);
                     }
+                    onTemperatureRead(temperature, desiredTemperature);
+                } else {
+                    Log.w(TAG, "stateCharacteristic has no value");
                 }
-            });
+            }
+            queue.onComplete(uuid, success);
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-            handler.post(new Runnable() {
-                @Override
+        public void onWrite(UUID uuid, boolean success) {
+            if (isCurrent()) {
+                queue.onComplete(uuid, success);
+            }
+        }
 
-                public void run() {
-                    if (!isAbandoned() && !isReset()) {
-                        if (status == GATT_SUCCESS) {
-                            shouldSendDesiredTemperature = false;
-                            Log.d(TAG, "write successful");
-                            dataTransmit();
-                        } else {
-                            handler.postDelayed(dataTransmitCallback, 5000);
-                        }
-                    }
+        @Override
+        public void onNotificationsEnabled(UUID uuid, boolean success) {
+            Log.d(TAG, "onNotificationsEnabled " + success);
+            if (isCurrent()) {
+                queue.onComplete(CLIENT_CHARACTERISTIC_CONFIG_UUID, success);
+            }
+        }
+
+        @Override
+        public void onNotification(UUID uuid, byte[] value) {
+            if (STATE_CHARACTERISTIC_UUID.equals(uuid) && TempcCodec.isFloat(value)) {
+                if (isCurrent() && notificationsEnabled) {
+                    temperature = TempcCodec.decodeFloat(value, 0);
+                    onTemperatureRead(temperature, desiredTemperature);
                 }
-            });
+            } else if (TELEMETRY_CHARACTERISTIC_UUID.equals(uuid)) {
+                if (isCurrent()) {
+                    onTelemetry(PidTelemetry.decode(value));
+                }
+            } else if (PROGRAM_STATUS_CHARACTERISTIC_UUID.equals(uuid)) {
+                if (isCurrent()) {
+                    onProgramStatus(ProgramStatus.decode(value));
+                }
+            } else {
+                unexpectedNotifications.increment();
+            }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "onCharacteristicChanged " + Arrays.toString(characteristic.getValue()));
+        public void onMtuChanged(int mtu, boolean success) {
+            if (isCurrent()) {
+                if (success) {
+                    ArduinoStateListener.this.mtu = mtu;
+                }
+                queue.onComplete(SERVICE_UUID, success);
+            }
         }
-    };
+    }
 
     private Runnable connectGattCallback = new Runnable() {
         @Override
@@ -178,6 +195,25 @@ final class ArduinoStateListener extends Loader<ArduinoState> {
         }
     };
 
+    private final Runnable connectTimeoutCallback = new Runnable() {
+        @Override
+        public void run() {
+            if (!closed && link != null) {
+                Log.w(TAG, "connect to " + address + " timed out");
+                scheduleReconnect();
+            }
+        }
+    };
+
+    private final Runnable restoreHistoryCallback = new Runnable() {
+        @Override
+        public void run() {
+            if (samples.isEmpty()) {
+                restoreHistory();
+            }
+        }
+    };
+
     private Runnable discoverServicesCallback = new Runnable() {
         @Override
         public void run() {
@@ -185,88 +221,352 @@ final class ArduinoStateListener extends Loader<ArduinoState> {
         }
     };
 
-    private Runnable dataTransmitCallback = new Runnable() {
+    private Runnable pollCallback = new Runnable() {
         @Override
         public void run() {
-            dataTransmit();
+            if (!notificationsEnabled) {
+                queue.enqueue(readStateOperation);
+            }
+            loop.postDelayed(this, POLL_INTERVAL_MS);
         }
     };
 
-    ArduinoStateListener(Context context) {
-        super(context);
-    }
+    private Runnable setpointRefreshCallback = new Runnable() {
+        @Override
+        public void run() {
+            queue.enqueue(setpointDirty ? writeSetpointOperation : readSetpointOperation);
+            loop.postDelayed(this, SETPOINT_REFRESH_INTERVAL_MS);
+        }
+    };
 
-    @Override
-    protected void onStartLoading() {
-        Log.d(TAG, "onStartLoading");
-        if (scanner == null) {
-            BluetoothManager bluetoothManager = (BluetoothManager) getContext().getSystemService(Context.BLUETOOTH_SERVICE);
-            BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
-            if (!bluetoothAdapter.isEnabled()) {
-                deliverResult(new ArduinoState("Enabling BT..."));
-                if (!bluetoothAdapter.enable()) {
-                    deliverResult(new ArduinoState("Enabling BT failed"));
-                }
+    private final GattQueue.Operation readStateOperation = new GattQueue.Operation(STATE_CHARACTERISTIC_UUID, "readState") {
+        @Override
+        boolean start() {
+            return link.read(STATE_CHARACTERISTIC_UUID);
+        }
+    };
+
+    private final GattQueue.Operation readSetpointOperation = new GattQueue.Operation(SET_TEMPERATURE_CHARACTERISTIC_UUID, "readSetpoint") {
+        @Override
+        boolean start() {
+            return link.read(SET_TEMPERATURE_CHARACTERISTIC_UUID);
+        }
+    };
+
+    private final byte[] setpointValue = new byte[TempcCodec.FLOAT_SIZE];
+    private float writtenSetpoint;
+
+    private final GattQueue.Operation writeSetpointOperation = new GattQueue.Operation(SET_TEMPERATURE_CHARACTERISTIC_UUID, "writeSetpoint") {
+        @Override
+        boolean start() {
+            writtenSetpoint = desiredTemperature;
+            TempcCodec.encodeFloat(writtenSetpoint, setpointValue, 0);
+            return link.write(SET_TEMPERATURE_CHARACTERISTIC_UUID, setpointValue);
+        }
+
+        @Override
+        void onDone(boolean success) {
+            if (!success) {
+                Log.w(TAG, "setTemperatureCharacteristic write failed");
+            } else if (writtenSetpoint == desiredTemperature) {
+                setpointDirty = false;
             }
-            scanner = bluetoothAdapter.getBluetoothLeScanner();
-            if (scanner == null) {
-                deliverResult(new ArduinoState("Cannot get LE scanner"));
+        }
+    };
+
+    private final GattQueue.Operation readConfigOperation = new GattQueue.Operation(CONFIG_CHARACTERISTIC_UUID, "readConfig") {
+        @Override
+        boolean start() {
+            return link.read(CONFIG_CHARACTERISTIC_UUID);
+        }
+    };
+
+    private final byte[] configValue = new byte[TempcConfig.SIZE];
+    private TempcConfig config, requestedConfig;
+    private boolean configWritten;
+    private int staleConfigReads;
+
+    private final GattQueue.Operation writeConfigOperation = new GattQueue.Operation(CONFIG_CHARACTERISTIC_UUID, "writeConfig") {
+        @Override
+        boolean start() {
+            requestedConfig.encode(configValue);
+            return link.write(CONFIG_CHARACTERISTIC_UUID, configValue);
+        }
+
+        @Override
+        void onDone(boolean success) {
+            Log.d(TAG, success ? "config written" : "config write failed");
+            // the sketch ignores values it can't apply, read back what it runs with
+            configWritten = success;
+            staleConfigReads = 0;
+            queue.enqueue(readConfigOperation);
+        }
+    };
+
+    private final GattQueue.Operation readTelemetryOperation = new GattQueue.Operation(TELEMETRY_CHARACTERISTIC_UUID, "readTelemetry") {
+        @Override
+        boolean start() {
+            return link.read(TELEMETRY_CHARACTERISTIC_UUID);
+        }
+    };
+
+    private final GattQueue.Operation readProgramOperation = new GattQueue.Operation(PROGRAM_CHARACTERISTIC_UUID, "readProgram") {
+        @Override
+        boolean start() {
+            return link.read(PROGRAM_CHARACTERISTIC_UUID);
+        }
+    };
+
+    private CookProgram program, requestedProgram;
+    private byte[] programValue;
+    private boolean programWritten;
+    private int staleProgramReads;
+
+    // the whole program goes in one write, a long write if it doesn't fit the MTU
+    private final GattQueue.Operation writeProgramOperation = new GattQueue.Operation(PROGRAM_CHARACTERISTIC_UUID, "writeProgram") {
+        @Override
+        boolean start() {
+            programValue = requestedProgram.encode();
+            return link.write(PROGRAM_CHARACTERISTIC_UUID, programValue);
+        }
+
+        @Override
+        void onDone(boolean success) {
+            Log.d(TAG, success ? "program written" : "program write failed");
+            // the sketch ignores programs it can't run, read back what it runs
+            programWritten = success;
+            staleProgramReads = 0;
+            queue.enqueue(readProgramOperation);
+            queue.enqueue(readProgramStatusOperation);
+        }
+    };
+
+    private final GattQueue.Operation readProgramStatusOperation = new GattQueue.Operation(PROGRAM_STATUS_CHARACTERISTIC_UUID, "readProgramStatus") {
+        @Override
+        boolean start() {
+            return link.read(PROGRAM_STATUS_CHARACTERISTIC_UUID);
+        }
+    };
+
+    private ProgramStatus programStatus;
+
+    private PidTelemetry telemetry;
+    private final TimeSeries dutyCycle = new TimeSeries(TELEMETRY_CAPACITY);
+    private final TimeSeries integralTerm = new TimeSeries(TELEMETRY_CAPACITY);
+
+    private int mtu = HistoryBatch.DEFAULT_MTU;
+    private long historySeq;
+    private int historyMerged, staleHistoryReads;
+    private final HistoryBatch historyBatch = new HistoryBatch();
+    private final byte[] historyRequestValue = new byte[HistoryBatch.REQUEST_SIZE];
+
+    // the MTU exchange concerns the whole connection, its callback is matched by the service uuid
+    private final GattQueue.Operation requestMtuOperation = new GattQueue.Operation(SERVICE_UUID, "requestMtu") {
+        @Override
+        boolean start() {
+            return link.requestMtu(HistoryBatch.MAX_MTU);
+        }
+
+        @Override
+        void onDone(boolean success) {
+            Log.d(TAG, "mtu " + mtu);
+            queue.enqueue(requestHistoryOperation);
+        }
+    };
+
+    private final GattQueue.Operation requestHistoryOperation = new GattQueue.Operation(HISTORY_CHARACTERISTIC_UUID, "requestHistory") {
+        @Override
+        boolean start() {
+            HistoryBatch.encodeRequest(historySeq, HistoryBatch.samplesPerRead(mtu), historyRequestValue);
+            return link.write(HISTORY_CHARACTERISTIC_UUID, historyRequestValue);
+        }
+
+        @Override
+        void onDone(boolean success) {
+            if (success) {
+                queue.enqueue(readHistoryOperation);
+            } else {
+                Log.w(TAG, "history request failed");
+                startSampling();
             }
         }
-        if (arduino == null && scanner != null) {
-            ScanFilter filter = new ScanFilter.Builder().setDeviceName("Tempc").build();
-            ScanSettings settings = new ScanSettings.Builder().setNumOfMatches(1).build();
-            scanning = true;
-            deliverResult(new ArduinoState("Scanning"));
-            scanner.startScan(Collections.singletonList(filter), settings, scanCallback);
+    };
+
+    private final GattQueue.Operation readHistoryOperation = new GattQueue.Operation(HISTORY_CHARACTERISTIC_UUID, "readHistory") {
+        @Override
+        boolean start() {
+            return link.read(HISTORY_CHARACTERISTIC_UUID);
+        }
+
+        @Override
+        void onDone(boolean success) {
+            if (!success) {
+                Log.w(TAG, "history read failed");
+                startSampling();
+            }
+        }
+    };
+
+    ArduinoStateListener(TempcTransport transport, EventLoop loop, String address, File logDir, ConnectionManager.Listener listener, Metrics metrics) {
+        this.transport = transport;
+        this.loop = loop;
+        this.address = address;
+        this.listener = listener;
+        String prefix = address + " ";
+        queue = new GattQueue(loop, GATT_OPERATION_TIMEOUT_MS, GATT_OPERATION_ATTEMPTS, metrics, prefix);
+        reconnects = metrics.counter(prefix + "reconnects");
+        reconnectTime = metrics.histogram(prefix + "reconnect_ms");
+        samplesReceived = metrics.counter(prefix + "samples");
+        sampleInterval = metrics.histogram(prefix + "sample_interval_ms");
+        unexpectedNotifications = metrics.counter(prefix + "unexpected_notifications");
+        alertsRaised = metrics.counter(prefix + "alerts");
+        snapshotRestoreTime = metrics.histogram(prefix + "snapshot_restore_ms");
+        historyRestoreTime = metrics.histogram(prefix + "history_restore_ms");
+        samples = new DeviceHistory(logDir, DeviceHistory.DEFAULT_CAPACITY);
+        snapshotFile = new File(logDir, StateSnapshot.FILE_NAME);
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    void start() {
+        Log.d(TAG, "start " + address);
+        if (samples.isEmpty()) {
+            restoreSnapshot();
+            connectGatt();
+            // the link comes up meanwhile, its callbacks are posted after this
+            loop.post(restoreHistoryCallback);
+        } else {
+            connectGatt();
         }
     }
 
-    @Override
-    protected void onReset() {
-        Log.d(TAG, "onReset");
-        stopScan();
-        stateCharacteristic = null;
-        if (gatt != null) {
-            gatt.disconnect();
-            gatt = null;
-        }
-        handler.removeCallbacks(connectGattCallback);
-        handler.removeCallbacks(discoverServicesCallback);
-        handler.removeCallbacks(dataTransmitCallback);
-        temperature = Float.MIN_VALUE;
-        desiredTemperatureReadTs = SystemClock.elapsedRealtime();
+    /**
+     * Connects now if a reconnect is waiting for its backoff delay; delays of the loop may stand
+     * still while the CPU sleeps.
+     *
+     * @return true if a connect was started
+     */
+    boolean reconnectNow() {
+        if (closed || link != null) {
+            return false;
+        }
+        loop.remove(connectGattCallback);
+        connectGatt();
+        return true;
     }
 
-    private void stopScan() {
-        if (scanning) {
-            scanning = false;
-            scanner.stopScan(scanCallback);
+    void flush() {
+        try {
+            samples.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot flush temperature log", e);
         }
+        saveSnapshot();
+    }
+
+    void close() {
+        Log.d(TAG, "close " + address);
+        closed = true;
+        loop.remove(restoreHistoryCallback);
+        saveSnapshot();
+        try {
+            samples.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close temperature log", e);
+        }
+        notificationsEnabled = false;
+        if (link != null) {
+            link.close();
+            link = null;
+        }
+        loop.remove(connectGattCallback);
+        loop.remove(connectTimeoutCallback);
+        loop.remove(discoverServicesCallback);
+        loop.remove(pollCallback);
+        loop.remove(setpointRefreshCallback);
+        queue.clear();
+    }
+
+    private void deliverResult(ArduinoState state) {
+        listener.onState(state);
+    }
+
+    /**
+     * Delivers the status with the last known values, if there are any.
+     */
+    private void deliverStatus(String message) {
+        status = message;
+        if (!samples.isEmpty()) {
+            deliverResult(sampleState().withMessage(message));
+        } else if (lastKnown != null) {
+            deliverResult(lastKnown.withMessage(message));
+        } else {
+            deliverResult(new ArduinoState(address, message));
+        }
+    }
+
+    private void scheduleReconnect() {
+        // a closed client releases its slot in the stack; the next attempt opens a new one
+        link.close();
+        link = null;
+        linkListener = null;
+        loop.remove(connectTimeoutCallback);
+        loop.remove(pollCallback);
+        loop.remove(setpointRefreshCallback);
+        queue.clear();
+        if (disconnectedAt < 0) {
+            disconnectedAt = loop.elapsedRealtime();
+        }
+        long delay = reconnectBackoff.nextDelay();
+        Log.d(TAG, "reconnect attempt " + reconnectBackoff.attempts() + " in " + delay + " ms");
+        deliverStatus("Disconnected, reconnecting");
+        loop.postDelayed(connectGattCallback, delay);
+    }
+
+    private void onReconnected() {
+        if (disconnectedAt >= 0) {
+            long duration = loop.elapsedRealtime() - disconnectedAt;
+            Log.i(TAG, address + " reconnected in " + duration + " ms, " + reconnectBackoff.attempts() + " attempts");
+            reconnects.increment();
+            reconnectTime.record(duration);
+            disconnectedAt = -1;
+        }
+        reconnectBackoff.reset();
     }
 
     private void connectGatt() {
-        shouldSendDesiredTemperature = false;
-        desiredTemperature = MIN_TEMPERATURE;
+        if (link != null) {
+            link.close();
+            link = null;
+        }
+        loop.remove(connectTimeoutCallback);
+        loop.remove(pollCallback);
+        loop.remove(setpointRefreshCallback);
+        queue.clear();
+        notificationsEnabled = false;
+        configWritten = false;
+        programWritten = false;
+        mtu = HistoryBatch.DEFAULT_MTU;
+        lastSampleAt = -1;
         temperature = MIN_TEMPERATURE;
-        if (arduino != null) {
-            if (!isAbandoned() && !isReset()) {
-                deliverResult(new ArduinoState("Connecting to " + arduino.getAddress()));
-                arduino.connectGatt(getContext(), true, gattCallback);
-            } else {
-                Log.w(TAG, "don't connectGatt");
-            }
+        if (!closed) {
+            deliverStatus("Connecting to " + address);
+            linkListener = new LinkListener();
+            link = transport.connect(address, linkListener);
+            loop.postDelayed(connectTimeoutCallback, CONNECT_TIMEOUT_MS);
         } else {
-            Log.e(TAG, "Cannot connectGatt, BT device is null");
+            Log.w(TAG, "don't connectGatt");
         }
     }
 
     private void discoverServices() {
-        if (!isAbandoned() && !isReset() && gatt != null) {
-            if (!gatt.discoverServices()) {
+        if (!closed && link != null) {
+            if (!link.discoverServices()) {
                 Log.w(TAG, "discoverServices rejected");
             } else {
-                deliverResult(new ArduinoState("Discovering services"));
+                deliverStatus("Discovering services");
                 Log.d(TAG, "Discovering services");
             }
         } else {
@@ -274,57 +574,321 @@ final class ArduinoStateListener extends Loader<ArduinoState> {
         }
     }
 
-    private void dataTransmit() {
-        if (!isAbandoned() && !isReset() && gatt != null && stateCharacteristic != null) {
-            if (shouldSendDesiredTemperature) {
-                byte[] temperatureBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(desiredTemperature).array();
-                setTemperatureCharacteristic.setValue(temperatureBytes);
-                if (!gatt.writeCharacteristic(setTemperatureCharacteristic)) {
-                    Log.w(TAG, "setTemperatureCharacteristic write refused");
+    private void startDataTransmit() {
+        if (link.hasCharacteristic(HISTORY_CHARACTERISTIC_UUID)) {
+            // samples recorded by the device while disconnected go before the new ones, so
+            // download them before subscribing, in as few batches as the MTU allows
+            historyMerged = 0;
+            staleHistoryReads = 0;
+            queue.enqueue(requestMtuOperation);
+        } else {
+            startSampling();
+        }
+    }
+
+    private void startSampling() {
+        if (link.supportsNotifications(STATE_CHARACTERISTIC_UUID)) {
+            queue.enqueue(new GattQueue.Operation(CLIENT_CHARACTERISTIC_CONFIG_UUID, "subscribe") {
+                @Override
+                boolean start() {
+                    return link.enableNotifications(STATE_CHARACTERISTIC_UUID);
                 }
-            } else if (desiredTemperature < 0 || SystemClock.elapsedRealtime() - desiredTemperatureReadTs > TimeUnit.MINUTES.toMillis(10)) {
-                desiredTemperatureReadTs = SystemClock.elapsedRealtime();
-                if (!gatt.readCharacteristic(setTemperatureCharacteristic)) {
-                    Log.w(TAG, "setTemperatureCharacteristic read refused");
+
+                @Override
+                void onDone(boolean success) {
+                    notificationsEnabled = success;
+                    if (!success) {
+                        Log.w(TAG, "state notifications refused, falling back to polling");
+                        link.disableNotifications(STATE_CHARACTERISTIC_UUID);
+                    }
                 }
-            } else if (!gatt.readCharacteristic(stateCharacteristic)) {
-                Log.w(TAG, "stateCharacteristic read refused");
-            }
+            });
+        }
+        if (link.supportsNotifications(TELEMETRY_CHARACTERISTIC_UUID)) {
+            queue.enqueue(new GattQueue.Operation(CLIENT_CHARACTERISTIC_CONFIG_UUID, "subscribeTelemetry") {
+                @Override
+                boolean start() {
+                    return link.enableNotifications(TELEMETRY_CHARACTERISTIC_UUID);
+                }
+
+                @Override
+                void onDone(boolean success) {
+                    if (!success) {
+                        Log.w(TAG, "telemetry notifications refused");
+                        link.disableNotifications(TELEMETRY_CHARACTERISTIC_UUID);
+                    }
+                }
+            });
+            // the next notification comes with the next control tick, up to a control period later
+            queue.enqueue(readTelemetryOperation);
+        }
+        // values restored from the snapshot are dropped if the sketch no longer has them
+        if (link.hasCharacteristic(CONFIG_CHARACTERISTIC_UUID)) {
+            queue.enqueue(readConfigOperation);
+        } else {
+            config = null;
+        }
+        if (link.hasCharacteristic(PROGRAM_CHARACTERISTIC_UUID)) {
+            queue.enqueue(readProgramOperation);
         } else {
-            Log.w(TAG, "don't read temp from " + stateCharacteristic);
+            program = null;
         }
+        if (link.supportsNotifications(PROGRAM_STATUS_CHARACTERISTIC_UUID)) {
+            queue.enqueue(new GattQueue.Operation(CLIENT_CHARACTERISTIC_CONFIG_UUID, "subscribeProgramStatus") {
+                @Override
+                boolean start() {
+                    return link.enableNotifications(PROGRAM_STATUS_CHARACTERISTIC_UUID);
+                }
+
+                @Override
+                void onDone(boolean success) {
+                    if (!success) {
+                        Log.w(TAG, "program status notifications refused");
+                        link.disableNotifications(PROGRAM_STATUS_CHARACTERISTIC_UUID);
+                    }
+                }
+            });
+        }
+        if (link.hasCharacteristic(PROGRAM_STATUS_CHARACTERISTIC_UUID)) {
+            queue.enqueue(readProgramStatusOperation);
+        }
+        // a setpoint changed while disconnected goes to the device instead of being read over
+        queue.enqueue(setpointDirty ? writeSetpointOperation : readSetpointOperation);
+        queue.enqueue(readStateOperation);
+        loop.postDelayed(pollCallback, POLL_INTERVAL_MS);
+        loop.postDelayed(setpointRefreshCallback, SETPOINT_REFRESH_INTERVAL_MS);
     }
 
     void sendDesiredTemperature(float value) {
         desiredTemperature = value;
-        shouldSendDesiredTemperature = true;
+        setpointDirty = true;
+        if (!closed && link != null) {
+            queue.enqueue(writeSetpointOperation);
+        }
+    }
+
+    void sendConfig(TempcConfig config) {
+        if (!config.isValid()) {
+            Log.w(TAG, "invalid config");
+        } else if (!closed && link != null && link.hasCharacteristic(CONFIG_CHARACTERISTIC_UUID)) {
+            requestedConfig = config;
+            queue.enqueue(writeConfigOperation);
+        }
+    }
+
+    /**
+     * Starts the program on the controller, {@link CookProgram#NONE} stops the running one.
+     */
+    void sendProgram(CookProgram program) {
+        if (!closed && link != null && link.hasCharacteristic(PROGRAM_CHARACTERISTIC_UUID)) {
+            requestedProgram = program;
+            queue.enqueue(writeProgramOperation);
+        }
+    }
+
+    private void onConfigRead(byte[] value) {
+        // the sketch answers a write in its loop, a read before that returns the written value;
+        // an accepted config reads the same, so the value is taken after the last re-read
+        if (configWritten && Arrays.equals(value, configValue) && ++staleConfigReads <= MAX_STALE_READS) {
+            queue.enqueue(readConfigOperation);
+            return;
+        }
+        configWritten = false;
+        TempcConfig config = TempcConfig.decode(value);
+        if (config == null) {
+            Log.w(TAG, "unsupported config");
+        }
+        this.config = config;
+        if (!samples.isEmpty()) {
+            deliverResult(sampleState());
+        }
+    }
+
+    private void onHistoryRead(byte[] value) {
+        long readAt = loop.elapsedRealtime();
+        // the sketch answers the request in its loop, a read before that returns the request itself
+        if (value.length < HistoryBatch.HEADER_SIZE) {
+            rereadHistory();
+            return;
+        }
+        if (!historyBatch.decode(value)) {
+            Log.w(TAG, "malformed history batch");
+            startSampling();
+            return;
+        }
+        if (historyBatch.nextSeq < historySeq) {
+            Log.i(TAG, address + " restarted, downloading its history from the beginning");
+            historySeq = 0;
+            queue.enqueue(requestHistoryOperation);
+            return;
+        }
+        // the batch of the previous request means this one is not answered yet either
+        if (historyBatch.count > 0 ? historyBatch.firstSeq < historySeq : historySeq < historyBatch.nextSeq) {
+            rereadHistory();
+            return;
+        }
+        staleHistoryReads = 0;
+        // samples before the last local one were received over the air or are duplicates
+        long lastTime = samples.isEmpty() ? Long.MIN_VALUE : samples.snapshot().lastTime();
+        long wallClockOffset = loop.currentTimeMillis() - readAt;
+        try {
+            for (int i = 0; i < historyBatch.count; i++) {
+                long time = historyBatch.time(i, readAt);
+                if (historyBatch.firstSeq + i >= historySeq && time > lastTime) {
+                    samples.add(time, time + wallClockOffset, historyBatch.temperature(i), historyBatch.desiredTemperature(i));
+                    lastTime = time;
+                    historyMerged++;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write temperature log", e);
+        }
+        historySeq = historyBatch.firstSeq + historyBatch.count;
+        if (historyBatch.count > 0 && historySeq < historyBatch.nextSeq) {
+            queue.enqueue(requestHistoryOperation);
+            return;
+        }
+        Log.d(TAG, "merged " + historyMerged + " samples of device history");
+        if (historyMerged > 0) {
+            deliverResult(sampleState());
+        }
+        startSampling();
     }
 
-    private long lastTs;
-    private int pos, count;
-    private static final int DATA_POINTS = 400;
-    private float[] deltaSeconds = new float[DATA_POINTS];
-    private float[] temp = new float[DATA_POINTS];
+    private void rereadHistory() {
+        if (++staleHistoryReads <= MAX_STALE_READS) {
+            queue.enqueue(readHistoryOperation);
+        } else {
+            Log.w(TAG, "history request not answered");
+            startSampling();
+        }
+    }
+
+    private static final int RESTORED_RECORDS = 65536;
+    private final DeviceHistory samples;
 
     private void onTemperatureRead(float temperature, float desiredTemperature) {
-        if (temperature > MIN_TEMPERATURE) {
-            long time = SystemClock.elapsedRealtime();
-            double diffSeconds = lastTs == 0 ? 0 : (time - lastTs) / 1_000.0;
-            double timeDiffSeconds = diffSeconds > 255 ? 255 : diffSeconds;
-            deltaSeconds[pos] = (float) timeDiffSeconds;
-            temp[pos] = temperature;
-            count++;
-            if (count >= DATA_POINTS) {
-                count = DATA_POINTS;
+        // before the first setpoint read the sample would go to the log, the detector and the fit with a bogus setpoint
+        if (temperature > MIN_TEMPERATURE && desiredTemperature > MIN_TEMPERATURE) {
+            long now = loop.elapsedRealtime();
+            samplesReceived.increment();
+            if (lastSampleAt >= 0) {
+                sampleInterval.record(now - lastSampleAt);
+            }
+            lastSampleAt = now;
+            status = null;
+            int previousAlerts = alerts;
+            alerts = anomalies.update(now, temperature, desiredTemperature);
+            if ((alerts & ~previousAlerts) != 0) {
+                Log.w(TAG, address + " alerts " + Integer.toBinaryString(alerts) + " at " + temperature + "/" + desiredTemperature
+                        + " C, slope " + anomalies.slope() + " C/min");
+                alertsRaised.increment();
             }
-            ArduinoStateListener.this.deliverResult(new ArduinoState(pos, count, temp, deltaSeconds, desiredTemperature));
-            pos++;
-            if (pos >= DATA_POINTS) {
-                pos = 0;
+            try {
+                samples.add(now, loop.currentTimeMillis(), temperature, desiredTemperature);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot write temperature log", e);
             }
-            lastTs = time;
+            deliverResult(sampleState());
         }
     }
 
-}
+    private void onProgramRead(byte[] value) {
+        // answered in the loop of the sketch as a config write is
+        if (programWritten && Arrays.equals(value, programValue) && ++staleProgramReads <= MAX_STALE_READS) {
+            queue.enqueue(readProgramOperation);
+            return;
+        }
+        programWritten = false;
+        CookProgram program = CookProgram.decode(value);
+        if (program == null) {
+            Log.w(TAG, "unsupported program");
+        }
+        this.program = program;
+        if (!samples.isEmpty()) {
+            deliverResult(sampleState());
+        }
+    }
+
+    private void onProgramStatus(ProgramStatus status) {
+        if (status == null) {
+            Log.w(TAG, "malformed program status");
+            return;
+        }
+        if (status.state != ProgramStatus.IDLE) {
+            // the program changes the setpoint without a write of ours
+            desiredTemperature = status.setpoint;
+        }
+        programStatus = status;
+        if (!samples.isEmpty()) {
+            deliverResult(sampleState());
+        }
+    }
+
+    private void onTelemetry(PidTelemetry telemetry) {
+        if (telemetry == null) {
+            Log.w(TAG, "malformed telemetry");
+            return;
+        }
+        // a read right after connecting may return the tick already seen
+        if (telemetry.tick != PidTelemetry.NO_TICK && (this.telemetry == null || this.telemetry.tick != telemetry.tick)) {
+            long now = loop.elapsedRealtime();
+            dutyCycle.append(now, telemetry.dutyCycle() * 100);
+            integralTerm.append(now, telemetry.integralTerm * 100);
+        }
+        this.telemetry = telemetry;
+        if (!samples.isEmpty()) {
+            deliverResult(sampleState());
+        }
+    }
 
+    private ArduinoState sampleState() {
+        return new ArduinoState(address, samples.lastTemperature(), samples.lastDesiredTemperature(), samples.snapshot(), samples.downsampled(),
+                config, telemetry, dutyCycle.snapshot(), integralTerm.snapshot(), alerts,
+                samples.estimator().rate(), samples.estimator().minutesToSetpoint(), program, programStatus);
+    }
+
+    /**
+     * Shows the state saved by the previous session right away, the log takes longer to load.
+     */
+    private void restoreSnapshot() {
+        long startedAt = loop.elapsedRealtime();
+        try {
+            StateSnapshot snapshot = StateSnapshot.read(snapshotFile);
+            if (snapshot != null) {
+                config = snapshot.config;
+                program = snapshot.program;
+                lastKnown = snapshot.toState(address, loop.elapsedRealtime() - loop.currentTimeMillis());
+                deliverResult(lastKnown);
+                snapshotRestoreTime.record(loop.elapsedRealtime() - startedAt);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read state snapshot", e);
+        }
+    }
+
+    private void saveSnapshot() {
+        if (!samples.isEmpty()) {
+            try {
+                StateSnapshot.write(snapshotFile, samples.snapshot(), loop.currentTimeMillis() - loop.elapsedRealtime(),
+                        samples.lastTemperature(), samples.lastDesiredTemperature(), config, program);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot save state snapshot", e);
+            }
+        }
+    }
+
+    private void restoreHistory() {
+        long startedAt = loop.elapsedRealtime();
+        try {
+            if (samples.restore(RESTORED_RECORDS, loop.elapsedRealtime() - loop.currentTimeMillis()) > 0) {
+                historyRestoreTime.record(loop.elapsedRealtime() - startedAt);
+                lastKnown = null;
+                deliverResult(status == null ? sampleState() : sampleState().withMessage(status));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read temperature log", e);
+        }
+    }
+
+}
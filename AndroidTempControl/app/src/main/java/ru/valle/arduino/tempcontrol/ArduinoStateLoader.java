@@ -0,0 +1,93 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.Loader;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Starts {@link TempcService} and delivers its states while started; the service keeps
+ * logging after the loader stops.
+ */
+final class ArduinoStateLoader extends Loader<ArduinoState> implements ServiceConnection {
+    private static final String TAG = "ArduinoStateLoader";
+    private TempcService service;
+    private boolean bound;
+
+    private final ConnectionManager.Listener subscriber = new ConnectionManager.Listener() {
+        @Override
+        public void onState(ArduinoState state) {
+            if (!isAbandoned() && !isReset()) {
+                deliverResult(state);
+            }
+        }
+    };
+
+    ArduinoStateLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        Log.d(TAG, "onStartLoading");
+        if (!bound) {
+            Intent intent = new Intent(getContext(), TempcService.class);
+            getContext().startService(intent);
+            bound = getContext().bindService(intent, this, Context.BIND_AUTO_CREATE);
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        unbind();
+    }
+
+    @Override
+    protected void onReset() {
+        Log.d(TAG, "onReset");
+        unbind();
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        service = ((TempcService.LocalBinder) binder).getService();
+        service.subscribe(subscriber);
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        service = null;
+    }
+
+    void sendDesiredTemperature(String address, float value) {
+        if (service != null) {
+            service.sendDesiredTemperature(address, value);
+        }
+    }
+
+    void sendConfig(String address, TempcConfig config) {
+        if (service != null) {
+            service.sendConfig(address, config);
+        }
+    }
+
+    void sendProgram(String address, CookProgram program) {
+        if (service != null) {
+            service.sendProgram(address, program);
+        }
+    }
+
+    private void unbind() {
+        if (service != null) {
+            service.unsubscribe(subscriber);
+            service = null;
+        }
+        if (bound) {
+            getContext().unbindService(this);
+            bound = false;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter: the n-th delay is random in [d / 2, d] where d is
+ * min(initial * 2^n, max), so controllers that dropped together don't retry in lockstep.
+ */
+final class Backoff {
+    private final long initialDelayMs, maxDelayMs;
+    private final Random random;
+    private int attempts;
+
+    Backoff(long initialDelayMs, long maxDelayMs, Random random) {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+    }
+
+    long nextDelay() {
+        long delay = initialDelayMs << Math.min(attempts, 30);
+        if (delay > maxDelayMs || delay <= 0) {
+            delay = maxDelayMs;
+        }
+        attempts++;
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half + 1));
+    }
+
+    int attempts() {
+        return attempts;
+    }
+
+    void reset() {
+        attempts = 0;
+    }
+}
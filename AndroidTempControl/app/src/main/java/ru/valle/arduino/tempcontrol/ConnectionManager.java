@@ -0,0 +1,176 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers Tempc controllers and keeps a separate {@link ArduinoStateListener} session per device.
+ * Must be used on the thread of its {@link EventLoop}.
+ */
+final class ConnectionManager {
+    interface Listener {
+        void onState(ArduinoState state);
+    }
+
+    /**
+     * Addresses of controllers found before, connected to directly without scanning.
+     */
+    interface DeviceStore {
+        Collection<String> load();
+
+        void remember(String address);
+    }
+
+    private static final String TAG = "ConnectionManager";
+    private static final long SCAN_PERIOD_MS = TimeUnit.SECONDS.toMillis(30);
+    private final TempcTransport transport;
+    private final EventLoop loop;
+    private final File logDir;
+    private final DeviceStore deviceStore;
+    private final Listener listener;
+    private final Metrics metrics;
+    private final Map<String, ArduinoStateListener> sessions = new LinkedHashMap<>();
+    private boolean scanning, started;
+
+    private final TempcTransport.ScanListener scanListener = new TempcTransport.ScanListener() {
+        @Override
+        public void onDeviceFound(String address) {
+            if (started && !sessions.containsKey(address)) {
+                Log.d(TAG, "found " + address);
+                deviceStore.remember(address);
+                connect(address);
+            }
+        }
+
+        @Override
+        public void onScanFailed(String reason) {
+            Log.w(TAG, reason);
+            stopScan();
+            listener.onState(new ArduinoState(reason));
+        }
+    };
+
+    private final Runnable stopScanCallback = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+            if (sessions.isEmpty()) {
+                listener.onState(new ArduinoState("No controllers found"));
+            }
+        }
+    };
+
+    /**
+     * @param logDir directory for per-device temperature logs
+     */
+    ConnectionManager(TempcTransport transport, EventLoop loop, File logDir, DeviceStore deviceStore, Listener listener, Metrics metrics) {
+        this.transport = transport;
+        this.loop = loop;
+        this.logDir = logDir;
+        this.deviceStore = deviceStore;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connects to the known controllers right away and scans for new ones for a while.
+     */
+    void start() {
+        started = true;
+        if (sessions.isEmpty()) {
+            for (String address : deviceStore.load()) {
+                connect(address);
+            }
+        }
+        scan();
+    }
+
+    void scan() {
+        if (!scanning) {
+            if (sessions.isEmpty()) {
+                listener.onState(new ArduinoState("Scanning"));
+            }
+            if (transport.startScan(scanListener)) {
+                scanning = true;
+                loop.postDelayed(stopScanCallback, SCAN_PERIOD_MS);
+            }
+        }
+    }
+
+    /**
+     * Starts the reconnects that wait for their backoff delays at once.
+     *
+     * @return number of started connects
+     */
+    int reconnectDisconnected() {
+        int started = 0;
+        for (ArduinoStateListener session : sessions.values()) {
+            if (session.reconnectNow()) {
+                started++;
+            }
+        }
+        return started;
+    }
+
+    void flush() {
+        for (ArduinoStateListener session : sessions.values()) {
+            session.flush();
+        }
+    }
+
+    void stop() {
+        started = false;
+        stopScan();
+        for (ArduinoStateListener session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+    }
+
+    void sendDesiredTemperature(String address, float value) {
+        ArduinoStateListener session = sessions.get(address);
+        if (session != null) {
+            session.sendDesiredTemperature(value);
+        } else {
+            Log.w(TAG, "No session for " + address);
+        }
+    }
+
+    void sendConfig(String address, TempcConfig config) {
+        ArduinoStateListener session = sessions.get(address);
+        if (session != null) {
+            session.sendConfig(config);
+        } else {
+            Log.w(TAG, "No session for " + address);
+        }
+    }
+
+    void sendProgram(String address, CookProgram program) {
+        ArduinoStateListener session = sessions.get(address);
+        if (session != null) {
+            session.sendProgram(program);
+        } else {
+            Log.w(TAG, "No session for " + address);
+        }
+    }
+
+    private void connect(String address) {
+        ArduinoStateListener session = new ArduinoStateListener(transport, loop, address,
+                new File(logDir, address.replace(":", "")), listener, metrics);
+        sessions.put(address, session);
+        session.start();
+    }
+
+    private void stopScan() {
+        loop.remove(stopScanCallback);
+        if (scanning) {
+            scanning = false;
+            transport.stopScan();
+        }
+    }
+}
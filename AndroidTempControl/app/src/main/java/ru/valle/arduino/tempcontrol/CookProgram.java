@@ -0,0 +1,253 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Setpoint profile the controller runs by itself, e.g. "ramp to 60 C, hold 2 h, 80 C for 6 h".
+ * Steps are separated by commas, semicolons, new lines or "then":
+ * <ul>
+ * <li>"ramp to T" sets T and goes on once T is reached</li>
+ * <li>"hold D" keeps the setpoint of the previous step for D after it is reached</li>
+ * <li>"T for D" sets T for D</li>
+ * </ul>
+ * T is in C, D is in h and min. The last setpoint stays when the program ends. The value of the
+ * program characteristic, little-endian, matches struct Program in the sketch:
+ * <pre>
+ *  0 uint8   version, {@link #VERSION}
+ *  1 uint8   step count, 0 stops the running program
+ *  2 steps, {@link #STEP_SIZE} bytes each:
+ *    0 int16   setpoint, 1/16 C
+ *    2 uint16  duration, min
+ *    4 uint8   flags, {@link #WAIT_FOR_SETPOINT}
+ *    5 uint8   reserved, 0
+ * </pre>
+ */
+final class CookProgram {
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 2;
+    static final int STEP_SIZE = 6;
+    static final int MAX_STEPS = 16;
+    static final int MAX_SIZE = HEADER_SIZE + MAX_STEPS * STEP_SIZE;
+    /**
+     * The duration of the step starts once its setpoint is reached.
+     */
+    static final int WAIT_FOR_SETPOINT = 1;
+    /**
+     * A setpoint counts as reached within this, C.
+     */
+    static final float SETPOINT_BAND = 0.5f;
+    static final float MIN_SETPOINT = -50, MAX_SETPOINT = 150;
+    static final int MAX_DURATION_MINUTES = 0xffff;
+    static final CookProgram NONE = new CookProgram(Collections.<Step>emptyList());
+
+    private static final Pattern STEP_SEPARATOR = Pattern.compile("\\s*(?:[,;\\n]|\\bthen\\b)\\s*", Pattern.CASE_INSENSITIVE);
+    private static final String TEMPERATURE = "(-?\\d+(?:\\.\\d+)?)\\s*\u00b0?\\s*c?";
+    private static final String DURATION = "((?:\\d+\\s*[a-z]+\\s*)+)";
+    private static final Pattern RAMP = Pattern.compile("ramp\\s+to\\s+" + TEMPERATURE, Pattern.CASE_INSENSITIVE);
+    private static final Pattern HOLD = Pattern.compile("hold\\s+" + DURATION, Pattern.CASE_INSENSITIVE);
+    private static final Pattern SET = Pattern.compile(TEMPERATURE + "\\s+for\\s+" + DURATION, Pattern.CASE_INSENSITIVE);
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+)\\s*([a-z]+)", Pattern.CASE_INSENSITIVE);
+
+    static final class Step {
+        final float setpoint;
+        final int durationMinutes;
+        final boolean waitForSetpoint;
+
+        Step(float setpoint, int durationMinutes, boolean waitForSetpoint) {
+            this.setpoint = setpoint;
+            this.durationMinutes = durationMinutes;
+            this.waitForSetpoint = waitForSetpoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Step)) {
+                return false;
+            }
+            Step other = (Step) o;
+            return Float.compare(setpoint, other.setpoint) == 0 && durationMinutes == other.durationMinutes
+                    && waitForSetpoint == other.waitForSetpoint;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Float.floatToIntBits(setpoint) + durationMinutes) + (waitForSetpoint ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            if (!waitForSetpoint) {
+                return formatTemperature(setpoint) + " for " + formatDuration(durationMinutes);
+            }
+            return "ramp to " + formatTemperature(setpoint) + (durationMinutes > 0 ? ", hold " + formatDuration(durationMinutes) : "");
+        }
+    }
+
+    final List<Step> steps;
+
+    CookProgram(List<Step> steps) {
+        this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    /**
+     * @throws IllegalArgumentException with the step that can't be compiled
+     */
+    static CookProgram parse(String text) {
+        List<Step> steps = new ArrayList<>();
+        for (String part : STEP_SEPARATOR.split(text.trim())) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            Matcher matcher;
+            if ((matcher = RAMP.matcher(part)).matches()) {
+                steps.add(new Step(parseSetpoint(matcher.group(1), part), 0, true));
+            } else if ((matcher = HOLD.matcher(part)).matches()) {
+                if (steps.isEmpty()) {
+                    throw new IllegalArgumentException(part + ": no setpoint to hold");
+                }
+                Step previous = steps.get(steps.size() - 1);
+                int minutes = parseDuration(matcher.group(1), part);
+                if (previous.durationMinutes == 0 && previous.waitForSetpoint) {
+                    // "ramp to T, hold D" is a single step
+                    steps.set(steps.size() - 1, new Step(previous.setpoint, minutes, true));
+                } else {
+                    steps.add(new Step(previous.setpoint, minutes, true));
+                }
+            } else if ((matcher = SET.matcher(part)).matches()) {
+                steps.add(new Step(parseSetpoint(matcher.group(1), part), parseDuration(matcher.group(2), part), false));
+            } else {
+                throw new IllegalArgumentException(part);
+            }
+        }
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException(text);
+        }
+        if (steps.size() > MAX_STEPS) {
+            throw new IllegalArgumentException("more than " + MAX_STEPS + " steps");
+        }
+        return new CookProgram(steps);
+    }
+
+    /**
+     * @return decoded program or null if the value isn't a program of a known version
+     */
+    static CookProgram decode(byte[] value) {
+        if (value == null || value.length < HEADER_SIZE || (value[0] & 0xff) != VERSION) {
+            return null;
+        }
+        int count = value[1] & 0xff;
+        if (count > MAX_STEPS || value.length < HEADER_SIZE + count * STEP_SIZE) {
+            return null;
+        }
+        List<Step> steps = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * STEP_SIZE;
+            steps.add(new Step((short) TempcCodec.decodeUint16(value, offset) / 16f, TempcCodec.decodeUint16(value, offset + 2),
+                    (value[offset + 4] & WAIT_FOR_SETPOINT) != 0));
+        }
+        return new CookProgram(steps);
+    }
+
+    /**
+     * @return the value to write, as long as the steps need
+     */
+    byte[] encode() {
+        byte[] value = new byte[HEADER_SIZE + steps.size() * STEP_SIZE];
+        value[0] = VERSION;
+        value[1] = (byte) steps.size();
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            int offset = HEADER_SIZE + i * STEP_SIZE;
+            TempcCodec.encodeUint16(Math.round(step.setpoint * 16) & 0xffff, value, offset);
+            TempcCodec.encodeUint16(step.durationMinutes, value, offset + 2);
+            value[offset + 4] = (byte) (step.waitForSetpoint ? WAIT_FOR_SETPOINT : 0);
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the sketch would run the program
+     */
+    boolean isValid() {
+        if (steps.size() > MAX_STEPS) {
+            return false;
+        }
+        for (Step step : steps) {
+            if (!(step.setpoint > MIN_SETPOINT && step.setpoint < MAX_SETPOINT)
+                    || step.durationMinutes < 0 || step.durationMinutes > MAX_DURATION_MINUTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CookProgram && steps.equals(((CookProgram) o).steps);
+    }
+
+    @Override
+    public int hashCode() {
+        return steps.hashCode();
+    }
+
+    /**
+     * @return the program in the form {@link #parse(String)} accepts
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Step step : steps) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(step);
+        }
+        return text.toString();
+    }
+
+    static String formatTemperature(float temperature) {
+        return (temperature == Math.round(temperature) ? String.valueOf(Math.round(temperature)) : String.valueOf(temperature)) + " C";
+    }
+
+    static String formatDuration(int minutes) {
+        if (minutes % 60 == 0 && minutes > 0) {
+            return minutes / 60 + " h";
+        }
+        return minutes >= 60 ? String.format(Locale.US, "%d h %d min", minutes / 60, minutes % 60) : minutes + " min";
+    }
+
+    private static float parseSetpoint(String value, String step) {
+        float setpoint = Float.parseFloat(value);
+        if (!(setpoint > MIN_SETPOINT && setpoint < MAX_SETPOINT)) {
+            throw new IllegalArgumentException(step + ": setpoint out of range");
+        }
+        // the controller keeps setpoints in 1/16 C
+        return Math.round(setpoint * 16) / 16f;
+    }
+
+    private static int parseDuration(String value, String step) {
+        long minutes = 0;
+        Matcher matcher = DURATION_PART.matcher(value);
+        while (matcher.find()) {
+            String unit = matcher.group(2).toLowerCase(Locale.US);
+            long amount = Long.parseLong(matcher.group(1));
+            if (unit.equals("h") || unit.startsWith("hour") || unit.equals("hr") || unit.equals("hrs")) {
+                minutes += amount * 60;
+            } else if (unit.equals("m") || unit.startsWith("min")) {
+                minutes += amount;
+            } else {
+                throw new IllegalArgumentException(step + ": unknown unit " + unit);
+            }
+            if (minutes > MAX_DURATION_MINUTES) {
+                throw new IllegalArgumentException(step + ": longer than " + formatDuration(MAX_DURATION_MINUTES));
+            }
+        }
+        return (int) minutes;
+    }
+}
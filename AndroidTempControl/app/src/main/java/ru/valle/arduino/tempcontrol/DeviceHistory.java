@@ -0,0 +1,88 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Samples of one controller: the recent raw history, its downsampled levels, the fit of its
+ * recent curve and the log on disk.
+ */
+final class DeviceHistory {
+    static final int DEFAULT_CAPACITY = 4096;
+    private final TimeSeries history;
+    private final Downsampler downsampled = new Downsampler(Downsampler.DEFAULT_BUCKET_WIDTHS, Downsampler.DEFAULT_BUCKETS_PER_LEVEL);
+    private final SetpointEstimator estimator = new SetpointEstimator();
+    private final TemperatureLog log;
+    private float lastTemperature, lastDesiredTemperature;
+
+    DeviceHistory(File logDir, int capacity) {
+        history = new TimeSeries(capacity);
+        log = new TemperatureLog(logDir);
+    }
+
+    /**
+     * Adds the sample to memory, then to the log; the sample stays in memory if the log write fails.
+     *
+     * @param time     elapsed realtime of the sample
+     * @param wallTime wall clock time of the sample, used in the log
+     */
+    void add(long time, long wallTime, float temperature, float desiredTemperature) throws IOException {
+        history.append(time, temperature);
+        downsampled.add(time, temperature);
+        estimator.add(time, temperature, desiredTemperature);
+        lastTemperature = temperature;
+        lastDesiredTemperature = desiredTemperature;
+        log.append(wallTime, temperature, desiredTemperature);
+    }
+
+    /**
+     * Loads the newest logged samples into memory.
+     *
+     * @param wallClockToElapsed offset from the wall clock time of the log to elapsed realtime
+     * @return number of restored samples
+     */
+    int restore(int maxRecords, final long wallClockToElapsed) throws IOException {
+        return log.readRecent(maxRecords, new TemperatureLog.RecordConsumer() {
+            @Override
+            public void onRecord(long time, float temperature, float desiredTemperature) {
+                history.append(time + wallClockToElapsed, temperature);
+                downsampled.add(time + wallClockToElapsed, temperature);
+                estimator.add(time + wallClockToElapsed, temperature, desiredTemperature);
+                lastTemperature = temperature;
+                lastDesiredTemperature = desiredTemperature;
+            }
+        });
+    }
+
+    boolean isEmpty() {
+        return history.snapshot().isEmpty();
+    }
+
+    TimeSeries.Snapshot snapshot() {
+        return history.snapshot();
+    }
+
+    Downsampler downsampled() {
+        return downsampled;
+    }
+
+    SetpointEstimator estimator() {
+        return estimator;
+    }
+
+    float lastTemperature() {
+        return lastTemperature;
+    }
+
+    float lastDesiredTemperature() {
+        return lastDesiredTemperature;
+    }
+
+    void flush() throws IOException {
+        log.flush();
+    }
+
+    void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,190 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pyramid of min/max/average buckets over the sample stream, one level per bucket width,
+ * updated in O(levels) per sample. Each level keeps a ring of completed buckets; a level is
+ * read through {@link LevelView}, which shows every bucket as two points, the min and the max,
+ * in the order they occurred, so spikes survive any zoom level.
+ */
+final class Downsampler {
+    static final long[] DEFAULT_BUCKET_WIDTHS = {TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(10)};
+    static final int DEFAULT_BUCKETS_PER_LEVEL = 1440;
+
+    private final Level[] levels;
+    private volatile long firstTime = Long.MIN_VALUE;
+
+    Downsampler(long[] bucketWidths, int bucketsPerLevel) {
+        levels = new Level[bucketWidths.length];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Level(bucketWidths[i], bucketsPerLevel);
+        }
+    }
+
+    void add(long time, float value) {
+        if (firstTime == Long.MIN_VALUE) {
+            firstTime = time;
+        }
+        for (Level level : levels) {
+            level.add(time, value);
+        }
+    }
+
+    /**
+     * @return time of the first sample ever added or Long.MIN_VALUE if there are none.
+     */
+    long firstTime() {
+        return firstTime;
+    }
+
+    int levelCount() {
+        return levels.length;
+    }
+
+    long bucketWidth(int level) {
+        return levels[level].width;
+    }
+
+    /**
+     * @return time span covered by the buckets the level can hold.
+     */
+    long retention(int level) {
+        return levels[level].width * levels[level].capacity;
+    }
+
+    LevelView view(int level) {
+        Level l = levels[level];
+        long end = l.completed;
+        return new LevelView(l, Math.max(0, end - l.capacity), end);
+    }
+
+    private static final class Level {
+        final long width;
+        final int capacity;
+        final long[] firstExtremeTimes, secondExtremeTimes;
+        final float[] firstExtremes, secondExtremes, mins, maxs, averages;
+        volatile long completed;
+        private long openStart;
+        private int openCount;
+        private float openMin, openMax;
+        private long openMinTime, openMaxTime;
+        private double openSum;
+
+        Level(long width, int capacity) {
+            this.width = width;
+            this.capacity = capacity;
+            firstExtremeTimes = new long[capacity];
+            secondExtremeTimes = new long[capacity];
+            firstExtremes = new float[capacity];
+            secondExtremes = new float[capacity];
+            mins = new float[capacity];
+            maxs = new float[capacity];
+            averages = new float[capacity];
+        }
+
+        void add(long time, float value) {
+            long bucketStart = time - floorMod(time, width);
+            if (openCount > 0 && bucketStart != openStart) {
+                close();
+            }
+            if (openCount == 0) {
+                openStart = bucketStart;
+                openMin = openMax = value;
+                openMinTime = openMaxTime = time;
+                openSum = 0;
+            } else if (value < openMin) {
+                openMin = value;
+                openMinTime = time;
+            } else if (value > openMax) {
+                openMax = value;
+                openMaxTime = time;
+            }
+            openSum += value;
+            openCount++;
+        }
+
+        private void close() {
+            long index = completed;
+            int slot = (int) (index % capacity);
+            boolean minFirst = openMinTime <= openMaxTime;
+            firstExtremeTimes[slot] = minFirst ? openMinTime : openMaxTime;
+            firstExtremes[slot] = minFirst ? openMin : openMax;
+            secondExtremeTimes[slot] = minFirst ? openMaxTime : openMinTime;
+            secondExtremes[slot] = minFirst ? openMax : openMin;
+            mins[slot] = openMin;
+            maxs[slot] = openMax;
+            averages[slot] = (float) (openSum / openCount);
+            openCount = 0;
+            completed = index + 1;
+        }
+
+        private static long floorMod(long x, long y) {
+            long mod = x % y;
+            return mod < 0 ? mod + y : mod;
+        }
+    }
+
+    /**
+     * Completed buckets [start, end) of one level. Point 2 * bucket is the earlier extreme of
+     * the bucket and point 2 * bucket + 1 is the later one.
+     */
+    static final class LevelView implements SampleView {
+        private final Level level;
+        private final long start, end;
+
+        private LevelView(Level level, long start, long end) {
+            this.level = level;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public long start() {
+            return start * 2;
+        }
+
+        @Override
+        public long end() {
+            return end * 2;
+        }
+
+        @Override
+        public long time(long index) {
+            int slot = (int) ((index >> 1) % level.capacity);
+            return (index & 1) == 0 ? level.firstExtremeTimes[slot] : level.secondExtremeTimes[slot];
+        }
+
+        @Override
+        public float value(long index) {
+            int slot = (int) ((index >> 1) % level.capacity);
+            return (index & 1) == 0 ? level.firstExtremes[slot] : level.secondExtremes[slot];
+        }
+
+        @Override
+        public long firstIntact() {
+            return Math.max(start, level.completed - level.capacity + 1) * 2;
+        }
+
+        @Override
+        public boolean continues(SampleView previous) {
+            return previous instanceof LevelView && ((LevelView) previous).level == level && previous.end() <= end();
+        }
+
+        long bucketCount() {
+            return end - start;
+        }
+
+        float min(long bucket) {
+            return level.mins[(int) (bucket % level.capacity)];
+        }
+
+        float max(long bucket) {
+            return level.maxs[(int) (bucket % level.capacity)];
+        }
+
+        float average(long bucket) {
+            return level.averages[(int) (bucket % level.capacity)];
+        }
+    }
+}
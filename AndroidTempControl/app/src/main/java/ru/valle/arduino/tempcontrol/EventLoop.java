@@ -0,0 +1,22 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Single thread the connection logic runs on, plus its clocks.
+ */
+interface EventLoop {
+    void post(Runnable runnable);
+
+    void postDelayed(Runnable runnable, long delayMs);
+
+    void remove(Runnable runnable);
+
+    /**
+     * @return monotonic time in ms, like SystemClock.elapsedRealtime()
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return wall clock time in ms, like System.currentTimeMillis()
+     */
+    long currentTimeMillis();
+}
@@ -0,0 +1,139 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Shares the temperature log of a device as content://AUTHORITY/ADDRESS/FORMAT, where ADDRESS
+ * is the device address without colons and FORMAT is one of {@link SessionExporter} formats.
+ * The export is written into a pipe while the receiver reads it, so nothing is staged in memory
+ * or in a temporary file.
+ */
+public final class ExportProvider extends ContentProvider {
+    private static final String TAG = "ExportProvider";
+    static final String AUTHORITY = "ru.valle.arduino.tempcontrol.export";
+    private static final Pattern DEVICE = Pattern.compile("[0-9A-Fa-f]{12}");
+
+    private final PipeDataWriter<File> pipeWriter = new PipeDataWriter<File>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, File logDir) {
+            String format = uri.getLastPathSegment();
+            OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            try {
+                TemperatureLog.Reader reader = new TemperatureLog(logDir).reader();
+                try {
+                    long count = SessionExporter.write(format, reader, out);
+                    Log.d(TAG, "exported " + count + " records of " + logDir.getName() + " as " + format);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "export of " + uri + " failed", e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    };
+
+    static Uri uri(String address, String format) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath(address.replace(":", ""))
+                .appendPath(format)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("read only: " + uri);
+        }
+        File logDir = logDir(uri);
+        if (logDir == null || !logDir.isDirectory()) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return openPipeHelper(uri, getType(uri), null, logDir, pipeWriter);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (logDir(uri) == null) {
+            return null;
+        }
+        if (projection == null) {
+            projection = new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        }
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                List<String> segments = uri.getPathSegments();
+                row[i] = "tempc-" + segments.get(0) + "." + segments.get(1);
+            }
+            // the size is unknown until the log is streamed, null tells the receiver so
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        if (logDir(uri) == null) {
+            return null;
+        }
+        return SessionExporter.mimeType(uri.getLastPathSegment());
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return log directory of the device in the uri, null if the uri isn't an export
+     */
+    private File logDir(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !DEVICE.matcher(segments.get(0)).matches()) {
+            return null;
+        }
+        String format = segments.get(1);
+        if (!SessionExporter.CSV.equals(format) && !SessionExporter.BINARY.equals(format)) {
+            return null;
+        }
+        return new File(TempcService.logDir(getContext()), segments.get(0));
+    }
+}
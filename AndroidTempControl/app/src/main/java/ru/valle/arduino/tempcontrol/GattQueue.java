@@ -0,0 +1,186 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Serializes GATT operations of one connection: the next operation starts as soon as the
+ * callback of the previous one arrives. Operations with the same coalescing key replace each
+ * other while waiting in the queue; failed, refused or timed out operations are retried.
+ * Latency from the request to its callback and the outcomes go to {@link Metrics}.
+ * <p>
+ * Callbacks carry only the uuid, so the callback of a timed out request can't be told from the
+ * one of its retry by itself. The first callback on a uuid after its timeout is taken as the late
+ * one and dropped. If it never comes, the reply to the next request on that uuid is dropped
+ * instead and that request times out once more, without expecting another late callback.
+ */
+final class GattQueue {
+    private static final String TAG = "GattQueue";
+
+    abstract static class Operation {
+        final UUID uuid;
+        final String coalescingKey;
+        private int attempts;
+
+        /**
+         * @param uuid          characteristic or descriptor the callback will report
+         * @param coalescingKey operations with equal non-null keys replace each other in the queue
+         */
+        Operation(UUID uuid, String coalescingKey) {
+            this.uuid = uuid;
+            this.coalescingKey = coalescingKey;
+        }
+
+        /**
+         * @return false if the request was refused by the stack
+         */
+        abstract boolean start();
+
+        void onDone(boolean success) {
+        }
+    }
+
+    private final EventLoop loop;
+    private final long timeoutMs;
+    private final int maxAttempts;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    /**
+     * Uuids of timed out requests whose callbacks haven't come yet.
+     */
+    private final Set<UUID> lateCallbacks = new HashSet<>();
+    private boolean droppedLateCallback;
+    private Operation current;
+    private long startedAt;
+    private final Metrics.Histogram latency;
+    private final Metrics.Counter succeeded, failed, timedOut, refused, retried;
+
+    private final Runnable timeoutCallback = new Runnable() {
+        @Override
+        public void run() {
+            if (current != null) {
+                Log.w(TAG, "timeout " + current.uuid);
+                timedOut.increment();
+                if (!droppedLateCallback) {
+                    // the dropped one could be the reply to this request
+                    lateCallbacks.add(current.uuid);
+                }
+                finishCurrent(false);
+            }
+        }
+    };
+
+    private final Runnable dispatchCallback = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param prefix prefix of the metric names, like the device address
+     */
+    GattQueue(EventLoop loop, long timeoutMs, int maxAttempts, Metrics metrics, String prefix) {
+        this.loop = loop;
+        this.timeoutMs = timeoutMs;
+        this.maxAttempts = maxAttempts;
+        latency = metrics.histogram(prefix + "gatt.latency_ms");
+        succeeded = metrics.counter(prefix + "gatt.succeeded");
+        failed = metrics.counter(prefix + "gatt.failed");
+        timedOut = metrics.counter(prefix + "gatt.timed_out");
+        refused = metrics.counter(prefix + "gatt.refused");
+        retried = metrics.counter(prefix + "gatt.retried");
+    }
+
+    void enqueue(Operation operation) {
+        if (operation.coalescingKey != null) {
+            for (Iterator<Operation> it = pending.iterator(); it.hasNext(); ) {
+                if (operation.coalescingKey.equals(it.next().coalescingKey)) {
+                    it.remove();
+                }
+            }
+        }
+        if (operation != current) {
+            operation.attempts = 0;
+        }
+        pending.add(operation);
+        if (current == null) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Reports the callback of the operation on uuid; callbacks that don't match the current
+     * operation and late ones after a timeout are ignored.
+     */
+    void onComplete(UUID uuid, boolean success) {
+        if (lateCallbacks.remove(uuid)) {
+            Log.d(TAG, "late callback " + uuid);
+            droppedLateCallback = current != null && current.uuid.equals(uuid);
+            return;
+        }
+        if (current != null && current.uuid.equals(uuid)) {
+            loop.remove(timeoutCallback);
+            latency.record(loop.elapsedRealtime() - startedAt);
+            (success ? succeeded : failed).increment();
+            finishCurrent(success);
+        }
+    }
+
+    boolean isIdle() {
+        return current == null && pending.isEmpty();
+    }
+
+    void clear() {
+        loop.remove(timeoutCallback);
+        loop.remove(dispatchCallback);
+        pending.clear();
+        lateCallbacks.clear();
+        current = null;
+    }
+
+    private void finishCurrent(boolean success) {
+        Operation operation = current;
+        current = null;
+        if (!success && operation.attempts < maxAttempts) {
+            retried.increment();
+            if (!pending.contains(operation)) {
+                // a reused operation enqueued again while it was running is already waiting
+                pending.addFirst(operation);
+            }
+            loop.post(dispatchCallback);
+        } else {
+            operation.attempts = 0;
+            operation.onDone(success);
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        while (current == null && !pending.isEmpty()) {
+            Operation operation = pending.poll();
+            operation.attempts++;
+            current = operation;
+            droppedLateCallback = false;
+            startedAt = loop.elapsedRealtime();
+            if (operation.start()) {
+                loop.postDelayed(timeoutCallback, timeoutMs);
+            } else {
+                Log.w(TAG, "refused " + operation.uuid + ", attempt " + operation.attempts);
+                refused.increment();
+                current = null;
+                if (operation.attempts < maxAttempts) {
+                    pending.addFirst(operation);
+                    loop.postDelayed(dispatchCallback, timeoutMs / maxAttempts);
+                    return;
+                }
+                operation.attempts = 0;
+                operation.onDone(false);
+            }
+        }
+    }
+}
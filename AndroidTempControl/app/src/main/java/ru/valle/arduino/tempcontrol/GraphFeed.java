@@ -0,0 +1,137 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Decides what the temperature graph shows: raw samples while they fit into {@link #MAX_POINTS},
+ * otherwise the finest {@link Downsampler} level that does. Between updates only the points
+ * that arrived since the last one are appended; the graph is rebuilt when the level changes
+ * or the shown points were overwritten.
+ */
+final class GraphFeed {
+    interface Sink {
+        void resetPoints(float[] xs, float[] ys, int offset, int count);
+
+        void appendPoint(float x, float y, int maxPoints);
+
+        void setViewport(float minX, float maxX);
+    }
+
+    static final int MAX_POINTS = 1000;
+    static final int RAW = -1;
+    private static final float MIN_VIEWPORT_MINUTES = 1;
+
+    private final long maxTimespan;
+    private final Sink sink;
+    private SampleView shown;
+    private int shownLevel = RAW;
+    private long shownEnd, windowStart, originTime;
+    private int shownPoints;
+    private float[] xs = new float[0], ys = new float[0];
+
+    GraphFeed(long maxTimespan, Sink sink) {
+        this.maxTimespan = maxTimespan;
+        this.sink = sink;
+    }
+
+    void update(TimeSeries.Snapshot history, Downsampler downsampler) {
+        if (history == null || history.size() < 2) {
+            return;
+        }
+        long lastTime = history.lastTime();
+        long firstTime = history.time(history.firstIntact());
+        if (downsampler != null && downsampler.firstTime() != Long.MIN_VALUE) {
+            firstTime = Math.min(firstTime, downsampler.firstTime());
+        }
+        long timespan = Math.min(maxTimespan, lastTime - firstTime);
+        int level = chooseLevel(history, downsampler, timespan);
+        SampleView view = level == RAW ? history : downsampler.view(level);
+        if (view.end() - view.firstIntact() < 2) {
+            level = RAW;
+            view = history;
+        }
+        if (shown == null || level != shownLevel || !view.continues(shown) || view.firstIntact() > shownEnd) {
+            rebuild(view);
+        } else {
+            for (long i = shownEnd; i < view.end(); i++) {
+                long time = view.time(i);
+                int maxPoints = (int) (i - moveWindowStart(view, time) + 1);
+                if (shownPoints > maxPoints) {
+                    rebuild(view);
+                    break;
+                }
+                sink.appendPoint(toX(time), view.value(i), maxPoints);
+                shownPoints = Math.min(shownPoints + 1, maxPoints);
+                shownEnd = i + 1;
+            }
+            shown = view;
+        }
+        shownLevel = level;
+        float minX = toX(lastTime - timespan);
+        sink.setViewport(minX, Math.max(minX + MIN_VIEWPORT_MINUTES, toX(lastTime)));
+    }
+
+    int shownLevel() {
+        return shownLevel;
+    }
+
+    private int chooseLevel(TimeSeries.Snapshot history, Downsampler downsampler, long timespan) {
+        long historyFirstTime = history.time(history.firstIntact());
+        long historySpan = Math.max(1, history.lastTime() - historyFirstTime);
+        long historyPoints = history.size() * Math.min(timespan, historySpan) / historySpan;
+        if (downsampler == null || (historyFirstTime <= history.lastTime() - timespan && historyPoints <= MAX_POINTS)) {
+            return RAW;
+        }
+        for (int level = 0; level < downsampler.levelCount(); level++) {
+            if (downsampler.retention(level) >= timespan && 2 * timespan / downsampler.bucketWidth(level) <= MAX_POINTS) {
+                return level;
+            }
+        }
+        return downsampler.levelCount() - 1;
+    }
+
+    private void rebuild(SampleView view) {
+        long end = view.end();
+        windowStart = end - 1;
+        long first = moveWindowStart(view, view.time(end - 1));
+        originTime = view.time(first);
+        int count = (int) (end - first);
+        if (xs.length < count) {
+            xs = new float[count];
+            ys = new float[count];
+        }
+        for (long i = first; i < end; i++) {
+            xs[(int) (i - first)] = toX(view.time(i));
+            ys[(int) (i - first)] = view.value(i);
+        }
+        int offset = (int) Math.min(count, Math.max(0, view.firstIntact() - first));
+        windowStart = first + offset;
+        sink.resetPoints(xs, ys, offset, count - offset);
+        shownPoints = count - offset;
+        shownEnd = end;
+        shown = view;
+    }
+
+    /**
+     * Moves the start of the window so it covers maxTimespan before the given time plus one
+     * point to the left of it, so the line enters the viewport from its edge.
+     */
+    private long moveWindowStart(SampleView view, long time) {
+        long minTime = time - maxTimespan;
+        long oldest = view.firstIntact();
+        long start = Math.max(windowStart, oldest);
+        while (start < view.end() - 1 && view.time(start + 1) <= minTime) {
+            start++;
+        }
+        while (start > oldest && view.time(start) > minTime) {
+            start--;
+        }
+        windowStart = start;
+        return start;
+    }
+
+    /**
+     * @return x of the time on the graph, minutes; changes when the shown points are reset
+     */
+    float toX(long time) {
+        return (time - originTime) / 60_000f;
+    }
+}
@@ -0,0 +1,38 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+final class HandlerEventLoop implements EventLoop {
+    private final Handler handler;
+
+    HandlerEventLoop(Looper looper) {
+        handler = new Handler(looper);
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs) {
+        handler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void remove(Runnable runnable) {
+        handler.removeCallbacks(runnable);
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,94 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Batch of the sample buffer the sketch keeps while nobody listens. The app writes a request
+ * to the history characteristic, then reads the batch back:
+ * <pre>
+ * request: uint32 first wanted sequence number, uint8 max sample count
+ * batch:   uint32 sequence number of the first sample in the batch,
+ *          uint32 sequence number the next recorded sample will get,
+ *          uint16 recording interval, s, uint16 age of the newest recorded sample, s,
+ *          then per sample int16 temperature and int16 setpoint, 1/16 C
+ * </pre>
+ * Sequence numbers start from 0 when the sketch starts. An instance is reused for every batch.
+ */
+final class HistoryBatch {
+    static final int REQUEST_SIZE = 5;
+    static final int HEADER_SIZE = 12;
+    static final int SAMPLE_SIZE = 4;
+    static final int MAX_SAMPLES = 255;
+    static final int DEFAULT_MTU = 23;
+    /**
+     * Largest ATT MTU that fits in one LE data packet with data length extension.
+     */
+    static final int MAX_MTU = 247;
+
+    long firstSeq, nextSeq, intervalMs, newestAgeMs;
+    int count;
+    private final float[] temperatures = new float[MAX_SAMPLES];
+    private final float[] desiredTemperatures = new float[MAX_SAMPLES];
+
+    /**
+     * @return number of samples a batch may have to fit in a single read at the mtu
+     */
+    static int samplesPerRead(int mtu) {
+        return Math.max(1, Math.min(MAX_SAMPLES, (mtu - 1 - HEADER_SIZE) / SAMPLE_SIZE));
+    }
+
+    static void encodeRequest(long fromSeq, int maxCount, byte[] out) {
+        TempcCodec.encodeUint32(fromSeq, out, 0);
+        out[4] = (byte) maxCount;
+    }
+
+    static void encodeHeader(long firstSeq, long nextSeq, int intervalSeconds, int newestAgeSeconds, byte[] out) {
+        TempcCodec.encodeUint32(firstSeq, out, 0);
+        TempcCodec.encodeUint32(nextSeq, out, 4);
+        TempcCodec.encodeUint16(intervalSeconds, out, 8);
+        TempcCodec.encodeUint16(newestAgeSeconds, out, 10);
+    }
+
+    static void encodeSample(int index, float temperature, float desiredTemperature, byte[] out) {
+        int offset = HEADER_SIZE + index * SAMPLE_SIZE;
+        TempcCodec.encodeUint16(Math.round(temperature * 16), out, offset);
+        TempcCodec.encodeUint16(Math.round(desiredTemperature * 16), out, offset + 2);
+    }
+
+    /**
+     * @return false if the value is not a consistent batch, the instance is left in an undefined state then
+     */
+    boolean decode(byte[] value) {
+        if (value == null || value.length < HEADER_SIZE || (value.length - HEADER_SIZE) % SAMPLE_SIZE != 0) {
+            return false;
+        }
+        firstSeq = TempcCodec.decodeUint32(value, 0);
+        nextSeq = TempcCodec.decodeUint32(value, 4);
+        intervalMs = TempcCodec.decodeUint16(value, 8) * 1000L;
+        newestAgeMs = TempcCodec.decodeUint16(value, 10) * 1000L;
+        count = (value.length - HEADER_SIZE) / SAMPLE_SIZE;
+        if (count > MAX_SAMPLES || firstSeq + count > nextSeq) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * SAMPLE_SIZE;
+            temperatures[i] = (short) TempcCodec.decodeUint16(value, offset) / 16f;
+            desiredTemperatures[i] = (short) TempcCodec.decodeUint16(value, offset + 2) / 16f;
+        }
+        return true;
+    }
+
+    /**
+     * @param readAt elapsed realtime when the batch was read
+     * @return elapsed realtime when the sample was recorded, the device has no clock of its own
+     */
+    long time(int index, long readAt) {
+        return readAt - newestAgeMs - (nextSeq - 1 - firstSeq - index) * intervalMs;
+    }
+
+    float temperature(int index) {
+        return temperatures[index];
+    }
+
+    float desiredTemperature(int index) {
+        return desiredTemperatures[index];
+    }
+}
@@ -3,6 +3,7 @@ package ru.valle.arduino.tempcontrol;
 import android.Manifest;
 import android.app.LoaderManager;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.Loader;
 import android.os.Bundle;
 import android.os.Handler;
@@ -11,30 +12,58 @@ import android.support.annotation.NonNull;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.jjoe64.graphview.GraphView;
 import com.jjoe64.graphview.series.DataPoint;
 import com.jjoe64.graphview.series.DataPointInterface;
 import com.jjoe64.graphview.series.LineGraphSeries;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 
-public final class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<ArduinoState> {
+public final class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<ArduinoState>, GraphFeed.Sink {
     private static final String TAG = "MainActivity";
     private static final int REQ_PERMISSION = 1;
+    private static final int LOADER_ID = 0;
     public static final int MIN_TEMPERATURE = -273;
-    private TextView tempView;
-    private View setTargetButton;
+    private static final int MAX_TIMESPAN_HOURS = 24;
+    private static final int DESIRED_LINE_EXTENT_MINUTES = 24 * 60;
+    private static final int TELEMETRY_MIN_PERCENT = -100, TELEMETRY_MAX_PERCENT = 100;
+    private TextView tempView, statusView, estimateView, programView, telemetryView, alertView;
+    private View setTargetButton, programButton;
     private GraphView graph;
+    private Spinner deviceSpinner;
+    private ArrayAdapter<String> devices;
+    private final Map<String, ArduinoState> states = new HashMap<>();
+    private String selectedAddress;
+    private LineGraphSeries<Point> temperatureSeries, desiredSeries, dutyCycleSeries, integralSeries;
+    private TimeSeries.Snapshot shownDutyCycle;
+    private final GraphFeed graphFeed = new GraphFeed(TimeUnit.HOURS.toMillis(MAX_TIMESPAN_HOURS), this);
+    private float shownDesiredTemperature = Float.NaN;
+    private float viewportMinX, viewportMaxX, desiredSeriesEndX;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         tempView = (TextView) findViewById(R.id.temperature_view);
+        statusView = (TextView) findViewById(R.id.status_view);
+        estimateView = (TextView) findViewById(R.id.estimate_view);
+        programView = (TextView) findViewById(R.id.program_view);
+        telemetryView = (TextView) findViewById(R.id.telemetry_view);
+        alertView = (TextView) findViewById(R.id.alert_view);
         setTargetButton = findViewById(R.id.set_target_button);
         setTargetButton.setOnClickListener(new View.OnClickListener() {
             AlertDialog alert;
@@ -50,8 +79,10 @@ public final class MainActivity extends AppCompatActivity implements LoaderManag
                         if (inputView != null) {
                             String valueStr = String.valueOf(((EditText) inputView).getText());
                             double value = Double.parseDouble(valueStr);
-                            Loader<ArduinoState> loader = getLoaderManager().getLoader(0);
-                            ((ArduinoStateListener) loader).sendDesiredTemperature((float) value);
+                            Loader<ArduinoState> loader = getLoaderManager().getLoader(LOADER_ID);
+                            if (loader != null && selectedAddress != null) {
+                                ((ArduinoStateLoader) loader).sendDesiredTemperature(selectedAddress, (float) value);
+                            }
                         }
                         alert = null;
                     }
@@ -60,6 +91,37 @@ public final class MainActivity extends AppCompatActivity implements LoaderManag
                 alert = alertBuilder.show();
             }
         });
+        programButton = findViewById(R.id.program_button);
+        programButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                ArduinoState state = selectedAddress == null ? null : states.get(selectedAddress);
+                if (state != null && state.program != null) {
+                    editProgram(selectedAddress, state.program);
+                }
+            }
+        });
+        devices = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
+        devices.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        deviceSpinner = (Spinner) findViewById(R.id.device_spinner);
+        deviceSpinner.setAdapter(devices);
+        deviceSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                String address = devices.getItem(position);
+                if (address != null && !address.equals(selectedAddress)) {
+                    selectedAddress = address;
+                    ArduinoState state = states.get(address);
+                    if (state != null) {
+                        showState(state);
+                    }
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
         graph = (GraphView) findViewById(R.id.graph);
         graph.getViewport().setXAxisBoundsManual(true);
         graph.getViewport().setMinX(0);
@@ -69,13 +131,136 @@ public final class MainActivity extends AppCompatActivity implements LoaderManag
         start();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.menu_config) {
+            ArduinoState state = selectedAddress == null ? null : states.get(selectedAddress);
+            if (state != null && state.config != null) {
+                editConfig(selectedAddress, state.config);
+            } else {
+                Toast.makeText(this, getString(R.string.config_not_supported), Toast.LENGTH_LONG).show();
+            }
+            return true;
+        } else if (item.getItemId() == R.id.menu_export_csv || item.getItemId() == R.id.menu_export_binary) {
+            if (selectedAddress == null) {
+                Toast.makeText(this, getString(R.string.no_device_selected), Toast.LENGTH_SHORT).show();
+            } else {
+                exportSession(selectedAddress, item.getItemId() == R.id.menu_export_csv ? SessionExporter.CSV : SessionExporter.BINARY);
+            }
+            return true;
+        } else if (item.getItemId() == R.id.menu_metrics) {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void exportSession(String address, String format) {
+        Intent share = new Intent(Intent.ACTION_SEND)
+                .setType(SessionExporter.mimeType(format))
+                .putExtra(Intent.EXTRA_STREAM, ExportProvider.uri(address, format))
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(share, getString(R.string.export_session)));
+    }
+
+    private void editConfig(final String address, final TempcConfig current) {
+        AlertDialog.Builder alertBuilder = new AlertDialog.Builder(this);
+        alertBuilder.setTitle(R.string.controller_settings);
+        alertBuilder.setView(R.layout.edit_config);
+        alertBuilder.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                AlertDialog alert = (AlertDialog) dialog;
+                TempcConfig config;
+                try {
+                    config = new TempcConfig(
+                            Integer.parseInt(getText(alert, R.id.config_resolution)),
+                            Integer.parseInt(getText(alert, R.id.config_control_period)),
+                            Integer.parseInt(getText(alert, R.id.config_sample_interval)),
+                            Integer.parseInt(getText(alert, R.id.config_notify_interval)),
+                            Float.parseFloat(getText(alert, R.id.config_kp)),
+                            Float.parseFloat(getText(alert, R.id.config_ki)),
+                            Float.parseFloat(getText(alert, R.id.config_kd)));
+                } catch (NumberFormatException e) {
+                    config = null;
+                }
+                Loader<ArduinoState> loader = getLoaderManager().getLoader(LOADER_ID);
+                if (config == null || !config.isValid()) {
+                    Toast.makeText(MainActivity.this, getString(R.string.invalid_config), Toast.LENGTH_SHORT).show();
+                } else if (loader != null) {
+                    ((ArduinoStateLoader) loader).sendConfig(address, config);
+                }
+            }
+        });
+        alertBuilder.setNegativeButton(R.string.cancel, null);
+        AlertDialog alert = alertBuilder.show();
+        setText(alert, R.id.config_kp, String.valueOf(current.kp));
+        setText(alert, R.id.config_ki, String.valueOf(current.ki));
+        setText(alert, R.id.config_kd, String.valueOf(current.kd));
+        setText(alert, R.id.config_control_period, String.valueOf(current.controlPeriodSeconds));
+        setText(alert, R.id.config_resolution, String.valueOf(current.resolution));
+        setText(alert, R.id.config_sample_interval, String.valueOf(current.sampleIntervalMs));
+        setText(alert, R.id.config_notify_interval, String.valueOf(current.notifyIntervalMs));
+    }
+
+    private void editProgram(final String address, CookProgram current) {
+        AlertDialog.Builder alertBuilder = new AlertDialog.Builder(this);
+        alertBuilder.setTitle(R.string.edit_program_title);
+        alertBuilder.setView(R.layout.edit_program);
+        alertBuilder.setPositiveButton(R.string.start_program, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                String text = getText((AlertDialog) dialog, R.id.program_text);
+                CookProgram program;
+                try {
+                    program = CookProgram.parse(text);
+                } catch (IllegalArgumentException e) {
+                    Toast.makeText(MainActivity.this, getString(R.string.invalid_program, e.getMessage()), Toast.LENGTH_LONG).show();
+                    return;
+                }
+                sendProgram(address, program);
+            }
+        });
+        alertBuilder.setNeutralButton(R.string.stop_program, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                sendProgram(address, CookProgram.NONE);
+            }
+        });
+        alertBuilder.setNegativeButton(R.string.cancel, null);
+        AlertDialog alert = alertBuilder.show();
+        setText(alert, R.id.program_text, current.toString());
+    }
+
+    private void sendProgram(String address, CookProgram program) {
+        Loader<ArduinoState> loader = getLoaderManager().getLoader(LOADER_ID);
+        if (loader != null) {
+            ((ArduinoStateLoader) loader).sendProgram(address, program);
+        }
+    }
+
+    private static String getText(AlertDialog alert, int id) {
+        View view = alert.findViewById(id);
+        return view == null ? "" : String.valueOf(((EditText) view).getText()).trim();
+    }
+
+    private static void setText(AlertDialog alert, int id, String text) {
+        View view = alert.findViewById(id);
+        if (view != null) {
+            ((EditText) view).setText(text);
+        }
+    }
+
     private void start() {
         boolean hasBtPermission = checkSelfPermission(Manifest.permission.BLUETOOTH) == PERMISSION_GRANTED;
         boolean hasLocPermission = checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PERMISSION_GRANTED;
         if (!hasBtPermission || !hasLocPermission) {
             requestPermissions(new String[]{Manifest.permission.BLUETOOTH, Manifest.permission.ACCESS_COARSE_LOCATION}, REQ_PERMISSION);
         } else {
-            getLoaderManager().initLoader(0, null, this);
+            getLoaderManager().initLoader(LOADER_ID, null, this);
         }
     }
 
@@ -101,27 +286,91 @@ public final class MainActivity extends AppCompatActivity implements LoaderManag
 
     @Override
     public Loader<ArduinoState> onCreateLoader(int i, Bundle bundle) {
-        return new ArduinoStateListener(this);
+        return new ArduinoStateLoader(this);
     }
 
     @Override
     public void onLoadFinished(Loader<ArduinoState> loader, ArduinoState state) {
-        if (state.message != null) {
+        if (state.address != null) {
+            if (states.put(state.address, state) == null) {
+                devices.add(state.address);
+                deviceSpinner.setVisibility(devices.getCount() > 1 ? View.VISIBLE : View.GONE);
+            }
+            if (selectedAddress == null) {
+                selectedAddress = state.address;
+            } else if (!selectedAddress.equals(state.address)) {
+                return;
+            }
+        } else if (selectedAddress != null) {
+            Log.d(TAG, state.message);
+            return;
+        }
+        showState(state);
+    }
+
+    private void showState(ArduinoState state) {
+        statusView.setVisibility(state.message != null && state.history != null ? View.VISIBLE : View.GONE);
+        statusView.setText(state.message);
+        if (state.message != null && state.history == null) {
             tempView.setText(state.message);
             setTargetButton.setVisibility(View.GONE);
+            programButton.setVisibility(View.GONE);
         } else {
+            // while connecting the last known values are shown, without controls
+            boolean connected = state.message == null;
             graph.setVisibility(View.VISIBLE);
+            String alerts = TempcService.describeAlerts(this, state.alerts);
+            alertView.setVisibility(alerts == null ? View.GONE : View.VISIBLE);
+            alertView.setText(alerts);
+            programButton.setVisibility(state.program == null || !connected ? View.GONE : View.VISIBLE);
+            showProgramStatus(state);
             if (state.desiredTemperature > MIN_TEMPERATURE && state.getTemperature() > MIN_TEMPERATURE) {
-                setTargetButton.setVisibility(View.VISIBLE);
+                setTargetButton.setVisibility(connected ? View.VISIBLE : View.GONE);
                 tempView.setText(String.format("%s/%s C", state.getTemperature(), state.desiredTemperature));
+                showEstimate(state);
                 show(state);
             } else if (state.getTemperature() > MIN_TEMPERATURE) {
                 tempView.setText(String.format("%s C", state.getTemperature()));
+                estimateView.setVisibility(View.GONE);
                 show(state);
             }
         }
     }
 
+    private void showEstimate(ArduinoState state) {
+        if (Float.isNaN(state.heatingRate)) {
+            estimateView.setVisibility(View.GONE);
+            return;
+        }
+        estimateView.setVisibility(View.VISIBLE);
+        if (state.minutesToSetpoint == 0) {
+            estimateView.setText(getString(R.string.estimate_at_target, state.heatingRate));
+        } else if (Float.isNaN(state.minutesToSetpoint)) {
+            estimateView.setText(getString(R.string.estimate_rate, state.heatingRate));
+        } else {
+            estimateView.setText(getString(R.string.estimate_time_to_target, state.heatingRate, Math.round(state.minutesToSetpoint)));
+        }
+    }
+
+    private void showProgramStatus(ArduinoState state) {
+        ProgramStatus status = state.programStatus;
+        if (status == null || state.program == null || status.state == ProgramStatus.IDLE) {
+            programView.setVisibility(View.GONE);
+            return;
+        }
+        programView.setVisibility(View.VISIBLE);
+        String setpoint = CookProgram.formatTemperature(status.setpoint);
+        if (status.state == ProgramStatus.FINISHED || status.step >= state.program.steps.size()) {
+            programView.setText(getString(R.string.program_finished, setpoint));
+        } else if (status.waiting) {
+            programView.setText(getString(R.string.program_waiting, status.step + 1, state.program.steps.size(), setpoint));
+        } else {
+            programView.setText(getString(R.string.program_step, status.step + 1, state.program.steps.size(), setpoint,
+                    CookProgram.formatDuration((int) (status.stepElapsedSeconds / 60)),
+                    CookProgram.formatDuration(state.program.steps.get(status.step).durationMinutes)));
+        }
+    }
+
     private static class Point implements DataPointInterface {
         private final float x;
         private final float value;
@@ -143,35 +392,90 @@ public final class MainActivity extends AppCompatActivity implements LoaderManag
     }
 
     private void show(ArduinoState state) {
-        graph.removeAllSeries();
-        if (state.temperatures != null && state.count > 1) {
-            Point[] points = new Point[state.count];
-            double approxTimespanMinutes = state.deltaSeconds[state.position] * state.count / 60;
-            if (approxTimespanMinutes > 60) {
-                approxTimespanMinutes = 60;
-            } else if (approxTimespanMinutes < 1) {
-                approxTimespanMinutes = 1;
-            }
-            double maxx = approxTimespanMinutes;
-            graph.getViewport().setMaxX(maxx);
-            double x = maxx;
-            for (int i = 0, p = state.position; i < state.count; i++, p--) {
-                if (p < 0) {
-                    p = state.temperatures.length - 1;
-                }
-                points[p] = new Point((float) x, state.temperatures[p]);
-                x -= state.deltaSeconds[p] / 60.0;
-            }
-            graph.getViewport().setMinX(x);
-            LineGraphSeries<Point> series = new LineGraphSeries<>(points);
-            graph.addSeries(series);
-            Point[] dpoints = new Point[2];
-            dpoints[0] = new Point(0, state.desiredTemperature);
-            dpoints[1] = new Point((float) maxx, state.desiredTemperature);
-            LineGraphSeries<Point> desiredSeries = new LineGraphSeries<>(dpoints);
+        if (temperatureSeries == null) {
+            temperatureSeries = new LineGraphSeries<>();
+            graph.addSeries(temperatureSeries);
+            desiredSeries = new LineGraphSeries<>();
             desiredSeries.setColor(0xFFB22222);
             graph.addSeries(desiredSeries);
         }
+        graphFeed.update(state.history, state.downsampled);
+        showTelemetry(state);
+        if (state.desiredTemperature != shownDesiredTemperature || viewportMaxX > desiredSeriesEndX) {
+            shownDesiredTemperature = state.desiredTemperature;
+            desiredSeriesEndX = viewportMaxX + DESIRED_LINE_EXTENT_MINUTES;
+            desiredSeries.resetData(new Point[]{new Point(viewportMinX, shownDesiredTemperature), new Point(desiredSeriesEndX, shownDesiredTemperature)});
+        }
+    }
+
+    /**
+     * Duty cycle and integral term go to the second scale, in % of the full heater power.
+     */
+    private void showTelemetry(ArduinoState state) {
+        PidTelemetry telemetry = state.telemetry;
+        if (telemetry == null) {
+            telemetryView.setVisibility(View.GONE);
+            // curves of the previously shown device
+            if (dutyCycleSeries != null) {
+                dutyCycleSeries.resetData(new Point[0]);
+                integralSeries.resetData(new Point[0]);
+            }
+            shownDutyCycle = null;
+            return;
+        }
+        telemetryView.setVisibility(View.VISIBLE);
+        telemetryView.setText(String.format("P %.2f I %.2f D %.2f control %.2f heat %d/%d", telemetry.proportionalTerm,
+                telemetry.integralTerm, telemetry.derivativeTerm, telemetry.control, telemetry.heatQuants, telemetry.pwmTicks));
+        if (dutyCycleSeries == null) {
+            dutyCycleSeries = new LineGraphSeries<>();
+            dutyCycleSeries.setColor(0xFF2E8B57);
+            integralSeries = new LineGraphSeries<>();
+            integralSeries.setColor(0xFFFF8C00);
+            graph.getSecondScale().addSeries(dutyCycleSeries);
+            graph.getSecondScale().addSeries(integralSeries);
+            graph.getSecondScale().setMinY(TELEMETRY_MIN_PERCENT);
+            graph.getSecondScale().setMaxY(TELEMETRY_MAX_PERCENT);
+        }
+        // new points come once a control period, rebuilding both series is cheap then
+        if (state.dutyCycle != null && (shownDutyCycle == null || shownDutyCycle.end() != state.dutyCycle.end())) {
+            shownDutyCycle = state.dutyCycle;
+            dutyCycleSeries.resetData(toPoints(state.dutyCycle));
+            integralSeries.resetData(toPoints(state.integralTerm));
+        }
+    }
+
+    private Point[] toPoints(TimeSeries.Snapshot series) {
+        long first = series.firstIntact();
+        Point[] points = new Point[(int) (series.end() - first)];
+        for (long i = first; i < series.end(); i++) {
+            points[(int) (i - first)] = new Point(graphFeed.toX(series.time(i)), series.value(i));
+        }
+        return points;
+    }
+
+    @Override
+    public void resetPoints(float[] xs, float[] ys, int offset, int count) {
+        Point[] points = new Point[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = new Point(xs[offset + i], ys[offset + i]);
+        }
+        temperatureSeries.resetData(points);
+        shownDesiredTemperature = Float.NaN;
+        // the origin of x may have moved
+        shownDutyCycle = null;
+    }
+
+    @Override
+    public void appendPoint(float x, float y, int maxPoints) {
+        temperatureSeries.appendData(new Point(x, y), false, maxPoints);
+    }
+
+    @Override
+    public void setViewport(float minX, float maxX) {
+        viewportMinX = minX;
+        viewportMaxX = maxX;
+        graph.getViewport().setMinX(minX);
+        graph.getViewport().setMaxX(maxX);
     }
 
     @Override
@@ -0,0 +1,133 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters and histograms of the BLE pipeline. Look metrics up once and keep them in
+ * fields: updates are lock-free and don't allocate, so they are cheap enough for every callback.
+ * Any thread can {@link #report(Appendable)} while others update.
+ */
+final class Metrics {
+    static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        void increment() {
+            value.incrementAndGet();
+        }
+
+        long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values in power of two buckets: bucket 0 counts zeros,
+     * bucket i counts values in [2^(i-1), 2^i).
+     */
+    static final class Histogram {
+        static final int BUCKETS = 32;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(), sum = new AtomicLong(), max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        double mean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * @return upper bound of the bucket the quantile falls into, at most the max
+         */
+        long quantile(double q) {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                n += buckets.get(i);
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    String report() {
+        StringBuilder out = new StringBuilder();
+        try {
+            report(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes one line per metric, sorted by name.
+     */
+    void report(Appendable out) throws IOException {
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            out.append(entry.getKey()).append(' ').append(String.valueOf(entry.getValue().get())).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.append(entry.getKey()).append(String.format(Locale.US, " count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d\n",
+                    histogram.count(), histogram.mean(), histogram.quantile(0.5), histogram.quantile(0.9),
+                    histogram.quantile(0.99), histogram.max()));
+        }
+    }
+}
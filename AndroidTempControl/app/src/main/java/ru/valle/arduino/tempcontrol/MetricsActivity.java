@@ -0,0 +1,106 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Debug screen with the {@link Metrics} of the running {@link TempcService}, refreshed every
+ * second and exportable to a text file in the external files directory of the app.
+ */
+public final class MetricsActivity extends AppCompatActivity implements ServiceConnection {
+    private static final String TAG = "MetricsActivity";
+    private static final long REFRESH_INTERVAL_MS = 1000;
+    private final Handler handler = new Handler();
+    private TextView metricsView;
+    private TempcService service;
+
+    private final Runnable refreshCallback = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            handler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        metricsView = (TextView) findViewById(R.id.metrics_view);
+        findViewById(R.id.export_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                export();
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // doesn't start the service, the metrics are only there while it logs
+        bindService(new Intent(this, TempcService.class), this, 0);
+        handler.post(refreshCallback);
+    }
+
+    @Override
+    protected void onStop() {
+        handler.removeCallbacks(refreshCallback);
+        unbindService(this);
+        service = null;
+        super.onStop();
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        service = ((TempcService.LocalBinder) binder).getService();
+        refresh();
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        service = null;
+    }
+
+    private void refresh() {
+        if (service == null) {
+            metricsView.setText(R.string.metrics_not_running);
+        } else {
+            metricsView.setText(service.metrics().report());
+        }
+    }
+
+    private void export() {
+        if (service == null) {
+            return;
+        }
+        File file = new File(getExternalFilesDir(null), "metrics-" + System.currentTimeMillis() + ".txt");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                service.metrics().report(writer);
+            } finally {
+                writer.close();
+            }
+            Toast.makeText(this, getString(R.string.metrics_exported, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot export metrics", e);
+            Toast.makeText(this, getString(R.string.metrics_export_failed), Toast.LENGTH_LONG).show();
+        }
+    }
+}
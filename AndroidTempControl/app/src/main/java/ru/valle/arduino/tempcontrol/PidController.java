@@ -0,0 +1,105 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Java port of the controller in sketch_jul05a.ino: freqTick() runs every {@link #TICK_MS},
+ * every {@link #PWM_TICKS_COUNT}-th tick runs controlTick() which decides for how many of the
+ * following ticks the relay is on. Float arithmetic and truncation follow the sketch, so the
+ * port switches the relay exactly like the board does.
+ */
+final class PidController {
+    static final int PWM_TICKS_COUNT = 5;
+    static final long TICK_MS = 30000 / PWM_TICKS_COUNT;
+    private static final float NO_PREVIOUS_ERROR = -1000;
+
+    final float kp, ki, kd;
+    private float desiredTemperature = 45;
+    private float prevErrorP = NO_PREVIOUS_ERROR;
+    private float prevErrorD;
+    private float errorP, errorI, errorD, control;
+    private int ticks, heatQuants, decidedHeatQuants;
+
+    PidController(float kp, float ki, float kd) {
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+    }
+
+    /**
+     * KP = 0.7, KI = 1 / T, KD = 2 * T / 40 with T = 150, as in the sketch.
+     */
+    static PidController sketchDefaults() {
+        float t = 150.0f;
+        return new PidController(0.7f, 1.0f / t, 2 * t / 40);
+    }
+
+    void setDesiredTemperature(float desiredTemperature) {
+        this.desiredTemperature = desiredTemperature;
+    }
+
+    float desiredTemperature() {
+        return desiredTemperature;
+    }
+
+    /**
+     * @param temperature latest sensor reading
+     * @return true if the relay is on until the next tick
+     */
+    boolean freqTick(float temperature) {
+        if (ticks % PWM_TICKS_COUNT == 0) {
+            controlTick(temperature);
+        }
+        ticks++;
+        if (heatQuants > 0) {
+            heatQuants--;
+            return true;
+        }
+        return false;
+    }
+
+    private void controlTick(float temperature) {
+        errorP = desiredTemperature - temperature;
+        if (Math.abs(errorP) < 2) {
+            if (Math.abs(ki * (errorI + errorP)) < 1.1f) {
+                errorI += errorP;
+            }
+        } else {
+            errorI = 0;
+        }
+        errorD = ((prevErrorP > NO_PREVIOUS_ERROR ? errorP - prevErrorP : 0) + prevErrorD) / 2;
+        prevErrorP = errorP;
+        prevErrorD = errorD;
+        control = kp * errorP + ki * errorI + kd * errorD;
+        heatQuants = (int) Math.min(PWM_TICKS_COUNT, Math.max(0, PWM_TICKS_COUNT * control));
+        decidedHeatQuants = heatQuants;
+    }
+
+    /**
+     * @return number of ticks the last control tick turned the relay on for
+     */
+    int decidedHeatQuants() {
+        return decidedHeatQuants;
+    }
+
+    /**
+     * @return number of control ticks so far
+     */
+    int controlTicks() {
+        return (ticks + PWM_TICKS_COUNT - 1) / PWM_TICKS_COUNT;
+    }
+
+    float errorP() {
+        return errorP;
+    }
+
+    float errorI() {
+        return errorI;
+    }
+
+    float errorD() {
+        return errorD;
+    }
+
+    float control() {
+        return control;
+    }
+}
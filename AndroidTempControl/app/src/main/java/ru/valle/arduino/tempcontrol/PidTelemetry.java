@@ -0,0 +1,57 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Outcome of the last control tick of the sketch, as its telemetry characteristic reports it:
+ * <pre>
+ * uint16 control tick number, uint8 heat quanta, uint8 PWM ticks in a control period,
+ * float KP * errorP, float KI * errorI, float KD * errorD, float control
+ * </pre>
+ * Tick numbers start from 1, the sketch reports {@link #NO_TICK} until its first control tick.
+ */
+final class PidTelemetry {
+    static final int SIZE = 20;
+    static final int NO_TICK = 0;
+
+    final int tick;
+    final int heatQuants, pwmTicks;
+    final float proportionalTerm, integralTerm, derivativeTerm, control;
+
+    PidTelemetry(int tick, int heatQuants, int pwmTicks, float proportionalTerm, float integralTerm, float derivativeTerm, float control) {
+        this.tick = tick;
+        this.heatQuants = heatQuants;
+        this.pwmTicks = pwmTicks;
+        this.proportionalTerm = proportionalTerm;
+        this.integralTerm = integralTerm;
+        this.derivativeTerm = derivativeTerm;
+        this.control = control;
+    }
+
+    /**
+     * @return null if the value is too short or inconsistent
+     */
+    static PidTelemetry decode(byte[] value) {
+        if (value == null || value.length < SIZE || value[3] == 0) {
+            return null;
+        }
+        return new PidTelemetry(TempcCodec.decodeUint16(value, 0), value[2] & 0xff, value[3] & 0xff,
+                TempcCodec.decodeFloat(value, 4), TempcCodec.decodeFloat(value, 8),
+                TempcCodec.decodeFloat(value, 12), TempcCodec.decodeFloat(value, 16));
+    }
+
+    void encode(byte[] out) {
+        TempcCodec.encodeUint16(tick, out, 0);
+        out[2] = (byte) heatQuants;
+        out[3] = (byte) pwmTicks;
+        TempcCodec.encodeFloat(proportionalTerm, out, 4);
+        TempcCodec.encodeFloat(integralTerm, out, 8);
+        TempcCodec.encodeFloat(derivativeTerm, out, 12);
+        TempcCodec.encodeFloat(control, out, 16);
+    }
+
+    /**
+     * @return share of the control period the relay is on, 0..1
+     */
+    float dutyCycle() {
+        return (float) heatQuants / pwmTicks;
+    }
+}
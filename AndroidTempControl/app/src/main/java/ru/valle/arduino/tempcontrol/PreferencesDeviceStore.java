@@ -0,0 +1,35 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remembers controller addresses in shared preferences.
+ */
+final class PreferencesDeviceStore implements ConnectionManager.DeviceStore {
+    private static final String PREFERENCES_NAME = "devices";
+    private static final String KEY_ADDRESSES = "addresses";
+    private final SharedPreferences preferences;
+
+    PreferencesDeviceStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public Collection<String> load() {
+        return new HashSet<>(preferences.getStringSet(KEY_ADDRESSES, Collections.<String>emptySet()));
+    }
+
+    @Override
+    public void remember(String address) {
+        Set<String> addresses = new HashSet<>(preferences.getStringSet(KEY_ADDRESSES, Collections.<String>emptySet()));
+        if (addresses.add(address)) {
+            preferences.edit().putStringSet(KEY_ADDRESSES, addresses).apply();
+        }
+    }
+}
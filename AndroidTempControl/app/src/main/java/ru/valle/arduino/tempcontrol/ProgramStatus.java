@@ -0,0 +1,57 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Progress of the {@link CookProgram} running on the controller, the value of its program status
+ * characteristic. The sketch advances the program on control ticks and notifies the status.
+ * Layout, little-endian, matches struct ProgramStatus in the sketch:
+ * <pre>
+ *  0 uint8   state, {@link #IDLE}, {@link #RUNNING} or {@link #FINISHED}
+ *  1 uint8   current step
+ *  2 uint8   flags, {@link #WAITING}
+ *  3 uint8   reserved, 0
+ *  4 uint32  time held at the setpoint of the step, s
+ *  8 float   setpoint of the step
+ * </pre>
+ */
+final class ProgramStatus {
+    static final int SIZE = 12;
+    static final int IDLE = 0, RUNNING = 1, FINISHED = 2;
+    /**
+     * The step waits for its setpoint to be reached.
+     */
+    static final int WAITING = 1;
+
+    final int state;
+    final int step;
+    final boolean waiting;
+    final long stepElapsedSeconds;
+    final float setpoint;
+
+    ProgramStatus(int state, int step, boolean waiting, long stepElapsedSeconds, float setpoint) {
+        this.state = state;
+        this.step = step;
+        this.waiting = waiting;
+        this.stepElapsedSeconds = stepElapsedSeconds;
+        this.setpoint = setpoint;
+    }
+
+    /**
+     * @return decoded status, null if the value is too short
+     */
+    static ProgramStatus decode(byte[] value) {
+        if (value == null || value.length < SIZE) {
+            return null;
+        }
+        return new ProgramStatus(value[0] & 0xff, value[1] & 0xff, (value[2] & WAITING) != 0,
+                TempcCodec.decodeUint32(value, 4), TempcCodec.decodeFloat(value, 8));
+    }
+
+    void encode(byte[] out) {
+        out[0] = (byte) state;
+        out[1] = (byte) step;
+        out[2] = (byte) (waiting ? WAITING : 0);
+        out[3] = 0;
+        TempcCodec.encodeUint32(stepElapsedSeconds, out, 4);
+        TempcCodec.encodeFloat(setpoint, out, 8);
+    }
+}
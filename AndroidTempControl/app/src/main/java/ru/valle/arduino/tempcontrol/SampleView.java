@@ -0,0 +1,22 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Read-only view over timestamped points with absolute indices in [start, end).
+ * Points below {@link #firstIntact()} may have been overwritten since the view was taken.
+ */
+interface SampleView {
+    long start();
+
+    long end();
+
+    long time(long index);
+
+    float value(long index);
+
+    long firstIntact();
+
+    /**
+     * @return true if this view shows the same points as the previous one plus possibly newer ones.
+     */
+    boolean continues(SampleView previous);
+}
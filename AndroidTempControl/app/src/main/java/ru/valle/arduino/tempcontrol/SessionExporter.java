@@ -0,0 +1,106 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes the records of a {@link TemperatureLog.Reader} as they are read, through a fixed size
+ * buffer, so exporting a long cook session takes as much memory as a short one.
+ */
+final class SessionExporter {
+    static final String CSV = "csv";
+    static final String BINARY = "bin";
+    static final String CSV_HEADER = "time,temperature,desired_temperature\n";
+    static final int BINARY_MAGIC = 0x54434558;
+    static final int BINARY_VERSION = 1;
+    /**
+     * Delta of a record whose time doesn't fit an int delta, followed by the time as a long.
+     */
+    static final int ABSOLUTE_TIME = Integer.MIN_VALUE;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SessionExporter() {
+    }
+
+    static String mimeType(String format) {
+        return CSV.equals(format) ? "text/csv" : "application/octet-stream";
+    }
+
+    /**
+     * @return number of records written
+     */
+    static long write(String format, TemperatureLog.Reader reader, OutputStream out) throws IOException {
+        if (CSV.equals(format)) {
+            return writeCsv(reader, out);
+        } else if (BINARY.equals(format)) {
+            return writeBinary(reader, out);
+        }
+        throw new IllegalArgumentException(format);
+    }
+
+    /**
+     * Header line, then time in ISO 8601 UTC and temperatures in C, one record per line.
+     */
+    static long writeCsv(TemperatureLog.Reader reader, OutputStream out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date date = new Date();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+        writer.write(CSV_HEADER);
+        long count = 0;
+        while (reader.next()) {
+            date.setTime(reader.time());
+            writer.write(format.format(date));
+            writer.write(',');
+            writer.write(Float.toString(reader.temperature()));
+            writer.write(',');
+            writer.write(Float.toString(reader.desiredTemperature()));
+            writer.write('\n');
+            count++;
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Big-endian magic, version and time of the first record in ms, then 12 byte records: int ms
+     * since the previous record, float temperature and float desired temperature in C.
+     */
+    static long writeBinary(TemperatureLog.Reader reader, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(BINARY_VERSION);
+        long count = 0;
+        long previousTime = 0;
+        while (reader.next()) {
+            long time = reader.time();
+            if (count == 0) {
+                data.writeLong(time);
+                data.writeInt(0);
+            } else {
+                long delta = time - previousTime;
+                if (delta > Integer.MIN_VALUE && delta <= Integer.MAX_VALUE) {
+                    data.writeInt((int) delta);
+                } else {
+                    data.writeInt(ABSOLUTE_TIME);
+                    data.writeLong(time);
+                }
+            }
+            data.writeFloat(reader.temperature());
+            data.writeFloat(reader.desiredTemperature());
+            previousTime = time;
+            count++;
+        }
+        data.flush();
+        return count;
+    }
+}
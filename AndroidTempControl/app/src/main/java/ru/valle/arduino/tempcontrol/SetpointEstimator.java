@@ -0,0 +1,122 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fits the recent heating or cooling curve as a first order system, rate = b0 + b1 * error,
+ * where error is the distance to the setpoint, by recursive least squares with exponential
+ * forgetting. Each sample costs constant time, the fit follows the curve as the PID controller
+ * changes the heater power.
+ */
+final class SetpointEstimator {
+    static final float UNKNOWN = Float.NaN;
+    private static final long FORGETTING_TIME_CONSTANT_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long MAX_GAP_MS = TimeUnit.MINUTES.toMillis(2);
+    private static final int MIN_SAMPLES = 12;
+    private static final double INITIAL_COVARIANCE = 1000;
+    private static final double MAX_COVARIANCE = 1e6;
+    private static final float AT_SETPOINT_C = 0.25f;
+    private static final float MAX_MINUTES = 24 * 60;
+
+    private double b0, b1;
+    private double p00, p01, p11;
+    private int samples;
+    private long lastTime = Long.MIN_VALUE;
+    private float lastTemperature;
+    private float setpoint = Float.NaN;
+
+    SetpointEstimator() {
+        reset();
+    }
+
+    /**
+     * @param time sample time, ms, monotonic
+     */
+    void add(long time, float temperature, float desiredTemperature) {
+        if (desiredTemperature != setpoint) {
+            setpoint = desiredTemperature;
+            reset();
+        }
+        if (!AnomalyDetector.isInSensorRange(temperature)) {
+            return;
+        }
+        if (lastTime != Long.MIN_VALUE && time > lastTime && time - lastTime <= MAX_GAP_MS) {
+            long dt = time - lastTime;
+            double rate = (double) (temperature - lastTemperature) * TimeUnit.MINUTES.toMillis(1) / dt;
+            // error in the middle of the interval, the rate is measured over it
+            update((lastTemperature + temperature) / 2.0 - setpoint, rate, Math.exp(-(double) dt / FORGETTING_TIME_CONSTANT_MS));
+        }
+        lastTime = time;
+        lastTemperature = temperature;
+    }
+
+    /**
+     * @return fitted rate of change at the last temperature, C per minute, {@link #UNKNOWN} before
+     * enough samples
+     */
+    float rate() {
+        if (samples < MIN_SAMPLES) {
+            return UNKNOWN;
+        }
+        return (float) (b0 + b1 * (lastTemperature - setpoint));
+    }
+
+    /**
+     * @return minutes until the temperature reaches the setpoint, 0 if it is there,
+     * {@link #UNKNOWN} if the fit doesn't get there or there are not enough samples
+     */
+    float minutesToSetpoint() {
+        if (samples < MIN_SAMPLES) {
+            return UNKNOWN;
+        }
+        double error = lastTemperature - setpoint;
+        if (Math.abs(error) <= AT_SETPOINT_C) {
+            return 0;
+        }
+        double minutes;
+        if (b1 < 0) {
+            // error(t) = steady + (error - steady) * exp(b1 * t)
+            double steady = -b0 / b1;
+            if (steady * error >= 0) {
+                return UNKNOWN;
+            }
+            minutes = Math.log(steady / (steady - error)) / b1;
+        } else {
+            double rate = b0 + b1 * error;
+            if (rate * error >= 0) {
+                return UNKNOWN;
+            }
+            minutes = -error / rate;
+        }
+        return minutes <= MAX_MINUTES ? (float) minutes : UNKNOWN;
+    }
+
+    private void update(double error, double rate, double lambda) {
+        double px0 = p00 + p01 * error;
+        double px1 = p01 + p11 * error;
+        double gain = 1 / (lambda + px0 + px1 * error);
+        double k0 = px0 * gain, k1 = px1 * gain;
+        double residual = rate - (b0 + b1 * error);
+        b0 += k0 * residual;
+        b1 += k1 * residual;
+        p00 -= k0 * px0;
+        p01 -= k0 * px1;
+        p11 -= k1 * px1;
+        // without new information forgetting would blow the covariance up
+        if (p00 + p11 < MAX_COVARIANCE) {
+            p00 /= lambda;
+            p01 /= lambda;
+            p11 /= lambda;
+        }
+        samples++;
+    }
+
+    private void reset() {
+        b0 = 0;
+        b1 = 0;
+        p00 = INITIAL_COVARIANCE;
+        p01 = 0;
+        p11 = INITIAL_COVARIANCE;
+        samples = 0;
+    }
+}
@@ -0,0 +1,60 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands states from the BLE thread over to another event loop, usually the UI one. Only the
+ * newest state of every device waits for delivery, so a busy UI skips intermediate states
+ * instead of queueing them up. The time from the first waiting state to the delivery goes to
+ * the delivery lag histogram.
+ */
+final class StatePublisher implements ConnectionManager.Listener {
+    private static final String NO_ADDRESS = "";
+    private final EventLoop target;
+    private final ConnectionManager.Listener consumer;
+    private final ConcurrentHashMap<String, ArduinoState> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong scheduledAt = new AtomicLong();
+    private final Metrics.Histogram deliveryLag;
+    private final Metrics.Counter skipped;
+
+    private final Runnable deliverCallback = new Runnable() {
+        @Override
+        public void run() {
+            deliveryLag.record(target.elapsedRealtime() - scheduledAt.get());
+            scheduled.set(false);
+            for (String address : pending.keySet()) {
+                ArduinoState state = pending.remove(address);
+                if (state != null) {
+                    consumer.onState(state);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param consumer called on the target loop
+     */
+    StatePublisher(EventLoop target, ConnectionManager.Listener consumer, Metrics metrics) {
+        this.target = target;
+        this.consumer = consumer;
+        deliveryLag = metrics.histogram("ui.delivery_lag_ms");
+        skipped = metrics.counter("ui.skipped_states");
+    }
+
+    /**
+     * Can be called on any thread.
+     */
+    @Override
+    public void onState(ArduinoState state) {
+        if (pending.put(state.address == null ? NO_ADDRESS : state.address, state) != null) {
+            skipped.increment();
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            scheduledAt.set(target.elapsedRealtime());
+            target.post(deliverCallback);
+        }
+    }
+}
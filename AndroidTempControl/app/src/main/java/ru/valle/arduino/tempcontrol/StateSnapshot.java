@@ -0,0 +1,148 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Last known state of a controller and its recent samples in one small file, read on start to
+ * show the controller before its temperature log is loaded and the link comes up. Layout,
+ * big-endian:
+ * <pre>
+ * int    magic, int version
+ * long   wall clock time of the newest sample, ms
+ * float  temperature, float desired temperature
+ * uint8  config size, 0 if unknown, then the value of the config characteristic
+ * uint8  program size, 0 if unknown, then the value of the program characteristic
+ * int    sample count, then per sample, oldest first: int ms before the newest sample, float temperature
+ * </pre>
+ * The file is replaced by a rename, so a crash while saving leaves the previous snapshot.
+ */
+final class StateSnapshot {
+    static final String FILE_NAME = "state.snap";
+    private static final int MAGIC = 0x54435353;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    final long time;
+    final float temperature, desiredTemperature;
+    final TempcConfig config;
+    final CookProgram program;
+    /**
+     * Wall clock times and temperatures of the samples, oldest first.
+     */
+    final long[] times;
+    final float[] temperatures;
+
+    private StateSnapshot(long time, float temperature, float desiredTemperature, TempcConfig config, CookProgram program,
+                          long[] times, float[] temperatures) {
+        this.time = time;
+        this.temperature = temperature;
+        this.desiredTemperature = desiredTemperature;
+        this.config = config;
+        this.program = program;
+        this.times = times;
+        this.temperatures = temperatures;
+    }
+
+    /**
+     * @param history            samples to keep, their times are elapsed realtime
+     * @param elapsedToWallClock offset from elapsed realtime to the wall clock time
+     */
+    static void write(File file, TimeSeries.Snapshot history, long elapsedToWallClock, float temperature, float desiredTemperature,
+                      TempcConfig config, CookProgram program) throws IOException {
+        long newest = history.lastTime() + elapsedToWallClock;
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(newest);
+            out.writeFloat(temperature);
+            out.writeFloat(desiredTemperature);
+            if (config != null) {
+                byte[] value = new byte[TempcConfig.SIZE];
+                config.encode(value);
+                out.writeByte(value.length);
+                out.write(value);
+            } else {
+                out.writeByte(0);
+            }
+            byte[] value = program == null ? new byte[0] : program.encode();
+            out.writeByte(value.length);
+            out.write(value);
+            out.writeInt(history.size());
+            for (long i = history.start(); i < history.end(); i++) {
+                out.writeInt((int) (newest - elapsedToWallClock - history.time(i)));
+                out.writeFloat(history.value(i));
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * @return the snapshot, null if there is none or it is unreadable
+     */
+    static StateSnapshot read(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long time = in.readLong();
+            float temperature = in.readFloat();
+            float desiredTemperature = in.readFloat();
+            byte[] value = new byte[in.readUnsignedByte()];
+            in.readFully(value);
+            TempcConfig config = TempcConfig.decode(value);
+            value = new byte[in.readUnsignedByte()];
+            in.readFully(value);
+            CookProgram program = CookProgram.decode(value);
+            int count = in.readInt();
+            if (count < 0 || count > DeviceHistory.DEFAULT_CAPACITY) {
+                return null;
+            }
+            long[] times = new long[count];
+            float[] temperatures = new float[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = time - (in.readInt() & 0xffffffffL);
+                temperatures[i] = in.readFloat();
+            }
+            return new StateSnapshot(time, temperature, desiredTemperature, config, program, times, temperatures);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param wallClockToElapsed offset from the wall clock time to elapsed realtime
+     */
+    ArduinoState toState(String address, long wallClockToElapsed) {
+        TimeSeries history = new TimeSeries(Math.max(2, times.length));
+        Downsampler downsampled = new Downsampler(Downsampler.DEFAULT_BUCKET_WIDTHS, Downsampler.DEFAULT_BUCKETS_PER_LEVEL);
+        for (int i = 0; i < times.length; i++) {
+            history.append(times[i] + wallClockToElapsed, temperatures[i]);
+            downsampled.add(times[i] + wallClockToElapsed, temperatures[i]);
+        }
+        return new ArduinoState(address, temperature, desiredTemperature, history.snapshot(), downsampled, config, null, null, null, 0,
+                SetpointEstimator.UNKNOWN, SetpointEstimator.UNKNOWN, program, null);
+    }
+}
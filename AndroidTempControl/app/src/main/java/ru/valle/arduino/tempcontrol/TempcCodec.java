@@ -0,0 +1,50 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Encoding of Tempc characteristic values: little-endian IEEE 754 floats, as the sketch
+ * stores them in BLEFloatCharacteristic, and little-endian integers of its structs.
+ * Works on caller-owned arrays and doesn't allocate.
+ */
+final class TempcCodec {
+    static final int FLOAT_SIZE = 4;
+
+    private TempcCodec() {
+    }
+
+    static boolean isFloat(byte[] value) {
+        return value != null && value.length >= FLOAT_SIZE;
+    }
+
+    static float decodeFloat(byte[] value, int offset) {
+        return Float.intBitsToFloat((value[offset] & 0xff)
+                | (value[offset + 1] & 0xff) << 8
+                | (value[offset + 2] & 0xff) << 16
+                | (value[offset + 3] & 0xff) << 24);
+    }
+
+    static int decodeUint16(byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8;
+    }
+
+    static void encodeUint16(int value, byte[] out, int offset) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+    }
+
+    static long decodeUint32(byte[] value, int offset) {
+        return decodeUint16(value, offset) | (long) decodeUint16(value, offset + 2) << 16;
+    }
+
+    static void encodeUint32(long value, byte[] out, int offset) {
+        encodeUint16((int) value, out, offset);
+        encodeUint16((int) (value >> 16), out, offset + 2);
+    }
+
+    static void encodeFloat(float value, byte[] out, int offset) {
+        int bits = Float.floatToRawIntBits(value);
+        out[offset] = (byte) bits;
+        out[offset + 1] = (byte) (bits >> 8);
+        out[offset + 2] = (byte) (bits >> 16);
+        out[offset + 3] = (byte) (bits >> 24);
+    }
+}
@@ -0,0 +1,117 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Runtime settings of a Tempc controller, the value of its config characteristic. Layout,
+ * little-endian, matches struct Config in the sketch:
+ * <pre>
+ *  0 uint8   version, {@link #VERSION}
+ *  1 uint8   sensor resolution, bits
+ *  2 uint16  control period, s
+ *  4 uint16  sample interval, ms
+ *  6 uint16  min interval between state notifications, ms
+ *  8 float   KP
+ * 12 float   KI
+ * 16 float   KD
+ * </pre>
+ */
+final class TempcConfig {
+    static final int VERSION = 1;
+    static final int SIZE = 20;
+    static final int MIN_RESOLUTION = 9, MAX_RESOLUTION = 12;
+    static final int MIN_CONTROL_PERIOD_S = 5, MAX_CONTROL_PERIOD_S = 600;
+
+    final int resolution;
+    final int controlPeriodSeconds;
+    final int sampleIntervalMs;
+    final int notifyIntervalMs;
+    final float kp, ki, kd;
+
+    TempcConfig(int resolution, int controlPeriodSeconds, int sampleIntervalMs, int notifyIntervalMs, float kp, float ki, float kd) {
+        this.resolution = resolution;
+        this.controlPeriodSeconds = controlPeriodSeconds;
+        this.sampleIntervalMs = sampleIntervalMs;
+        this.notifyIntervalMs = notifyIntervalMs;
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+    }
+
+    /**
+     * @return the settings the sketch starts with
+     */
+    static TempcConfig sketchDefaults() {
+        PidController pid = PidController.sketchDefaults();
+        return new TempcConfig(12, 30, 0, 0, pid.kp, pid.ki, pid.kd);
+    }
+
+    /**
+     * @return decoded config or null if the value isn't a config of a known version
+     */
+    static TempcConfig decode(byte[] value) {
+        if (value == null || value.length < SIZE || (value[0] & 0xff) != VERSION) {
+            return null;
+        }
+        return new TempcConfig(value[1] & 0xff, TempcCodec.decodeUint16(value, 2), TempcCodec.decodeUint16(value, 4),
+                TempcCodec.decodeUint16(value, 6), TempcCodec.decodeFloat(value, 8), TempcCodec.decodeFloat(value, 12),
+                TempcCodec.decodeFloat(value, 16));
+    }
+
+    void encode(byte[] out) {
+        out[0] = VERSION;
+        out[1] = (byte) resolution;
+        TempcCodec.encodeUint16(controlPeriodSeconds, out, 2);
+        TempcCodec.encodeUint16(sampleIntervalMs, out, 4);
+        TempcCodec.encodeUint16(notifyIntervalMs, out, 6);
+        TempcCodec.encodeFloat(kp, out, 8);
+        TempcCodec.encodeFloat(ki, out, 12);
+        TempcCodec.encodeFloat(kd, out, 16);
+    }
+
+    /**
+     * @return true if the sketch would accept the config
+     */
+    boolean isValid() {
+        return resolution >= MIN_RESOLUTION && resolution <= MAX_RESOLUTION
+                && controlPeriodSeconds >= MIN_CONTROL_PERIOD_S && controlPeriodSeconds <= MAX_CONTROL_PERIOD_S
+                && sampleIntervalMs >= 0 && sampleIntervalMs <= 0xffff
+                && notifyIntervalMs >= 0 && notifyIntervalMs <= 0xffff
+                && isGain(kp) && isGain(ki) && isGain(kd);
+    }
+
+    /**
+     * @return time the DS18B20 needs for one conversion at the configured resolution, ms
+     */
+    int conversionTimeMs() {
+        return 750 >> (MAX_RESOLUTION - resolution);
+    }
+
+    private static boolean isGain(float gain) {
+        return gain >= 0 && !Float.isInfinite(gain);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TempcConfig)) {
+            return false;
+        }
+        TempcConfig other = (TempcConfig) o;
+        return resolution == other.resolution && controlPeriodSeconds == other.controlPeriodSeconds
+                && sampleIntervalMs == other.sampleIntervalMs && notifyIntervalMs == other.notifyIntervalMs
+                && Float.compare(kp, other.kp) == 0 && Float.compare(ki, other.ki) == 0 && Float.compare(kd, other.kd) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = resolution;
+        result = 31 * result + controlPeriodSeconds;
+        result = 31 * result + sampleIntervalMs;
+        result = 31 * result + notifyIntervalMs;
+        result = 31 * result + Float.floatToIntBits(kp);
+        result = 31 * result + Float.floatToIntBits(ki);
+        result = 31 * result + Float.floatToIntBits(kd);
+        return result;
+    }
+}
@@ -0,0 +1,22 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.UUID;
+
+/**
+ * GATT layout of the Tempc sketch.
+ */
+final class TempcProfile {
+    static final String DEVICE_NAME = "Tempc";
+    static final UUID SERVICE_UUID = UUID.fromString("19B10010-E8F2-537E-4F6C-D104768A1214");
+    static final UUID STATE_CHARACTERISTIC_UUID = UUID.fromString("19B10011-E8F2-537E-4F6C-D104768A1214");
+    static final UUID SET_TEMPERATURE_CHARACTERISTIC_UUID = UUID.fromString("19B10012-E8F2-537E-4F6C-D104768A1214");
+    static final UUID CONFIG_CHARACTERISTIC_UUID = UUID.fromString("19B10013-E8F2-537E-4F6C-D104768A1214");
+    static final UUID TELEMETRY_CHARACTERISTIC_UUID = UUID.fromString("19B10014-E8F2-537E-4F6C-D104768A1214");
+    static final UUID HISTORY_CHARACTERISTIC_UUID = UUID.fromString("19B10015-E8F2-537E-4F6C-D104768A1214");
+    static final UUID PROGRAM_CHARACTERISTIC_UUID = UUID.fromString("19B10016-E8F2-537E-4F6C-D104768A1214");
+    static final UUID PROGRAM_STATUS_CHARACTERISTIC_UUID = UUID.fromString("19B10017-E8F2-537E-4F6C-D104768A1214");
+    static final UUID CLIENT_CHARACTERISTIC_CONFIG_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private TempcProfile() {
+    }
+}
@@ -0,0 +1,355 @@
+package ru.valle.arduino.tempcontrol;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Binder;
+import android.os.Build;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static ru.valle.arduino.tempcontrol.MainActivity.MIN_TEMPERATURE;
+
+/**
+ * Foreground service that owns the BLE thread, the {@link ConnectionManager} and the histories,
+ * so logging goes on while no activity is visible. Activities bind to it and
+ * {@link #subscribe(ConnectionManager.Listener)} to the newest states.
+ * <p>
+ * Samples arrive with BLE notifications, which wake the CPU by themselves. Timers of the BLE
+ * thread count uptime and stand still while the CPU sleeps, so a reconnect waiting for its
+ * backoff delay would wait until something else wakes the device. An inexact alarm wakes it every
+ * few minutes instead: it starts the waiting reconnects at once and flushes the logs, holding a
+ * wake lock while the connects go on. The system batches such alarms with other wakeups.
+ */
+public final class TempcService extends Service {
+    private static final String TAG = "TempcService";
+    private static final String ACTION_STOP = "ru.valle.arduino.tempcontrol.action.STOP";
+    private static final String ACTION_WAKEUP = "ru.valle.arduino.tempcontrol.action.WAKEUP";
+    private static final String CHANNEL_ID = "logging";
+    private static final String ALERTS_CHANNEL_ID = "alerts";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int ALERT_NOTIFICATION_ID = 2;
+    private static final long WAKEUP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long WAKE_LOCK_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final long NOTIFICATION_UPDATE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    final class LocalBinder extends Binder {
+        TempcService getService() {
+            return TempcService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Map<String, ArduinoState> latestStates = new LinkedHashMap<>();
+    private final Map<String, Integer> shownAlerts = new HashMap<>();
+    private final List<ConnectionManager.Listener> subscribers = new ArrayList<>();
+    private final Metrics metrics = new Metrics();
+    private HandlerThread bleThread;
+    private EventLoop bleLoop;
+    private ConnectionManager connectionManager;
+    private AlarmManager alarmManager;
+    private PendingIntent wakeupIntent;
+    private PowerManager.WakeLock wakeLock;
+    private boolean logging;
+    private long notificationUpdatedAt = Long.MIN_VALUE;
+
+    private final ConnectionManager.Listener stateListener = new ConnectionManager.Listener() {
+        @Override
+        public void onState(ArduinoState state) {
+            latestStates.put(state.address == null ? "" : state.address, state);
+            for (ConnectionManager.Listener subscriber : new ArrayList<>(subscribers)) {
+                subscriber.onState(state);
+            }
+            if (state.message == null && SystemClock.elapsedRealtime() - notificationUpdatedAt >= NOTIFICATION_UPDATE_INTERVAL_MS) {
+                notificationUpdatedAt = SystemClock.elapsedRealtime();
+                ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(NOTIFICATION_ID, buildNotification(describe(state)));
+            }
+            if (state.message == null) {
+                showAlerts(state);
+            }
+        }
+    };
+
+    private final BroadcastReceiver wakeupReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!logging) {
+                return;
+            }
+            // the alarm holds the CPU only during onReceive, the BLE thread needs its own lock
+            wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+            final ConnectionManager manager = connectionManager;
+            bleLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    boolean connecting = manager.reconnectDisconnected() > 0;
+                    manager.flush();
+                    // a connect attempt keeps the lock until its timeout, the callbacks need the CPU
+                    if (!connecting && wakeLock.isHeld()) {
+                        wakeLock.release();
+                    }
+                }
+            });
+            scheduleWakeup();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(
+                    new NotificationChannel(CHANNEL_ID, getString(R.string.logging_channel), NotificationManager.IMPORTANCE_LOW));
+            notificationManager.createNotificationChannel(
+                    new NotificationChannel(ALERTS_CHANNEL_ID, getString(R.string.alerts_channel), NotificationManager.IMPORTANCE_HIGH));
+        }
+        wakeLock = ((PowerManager) getSystemService(POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.setReferenceCounted(false);
+        bleThread = new HandlerThread("TempcBle");
+        bleThread.start();
+        bleLoop = new HandlerEventLoop(bleThread.getLooper());
+        connectionManager = new ConnectionManager(new AndroidBleTransport(this, bleLoop), bleLoop,
+                logDir(this), new PreferencesDeviceStore(this),
+                new StatePublisher(new HandlerEventLoop(Looper.getMainLooper()), stateListener, metrics), metrics);
+        registerReceiver(wakeupReceiver, new IntentFilter(ACTION_WAKEUP));
+        alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        wakeupIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_WAKEUP).setPackage(getPackageName()), 0);
+        startLogging();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            Log.d(TAG, "stop requested");
+            // a bound activity keeps the service alive after stopSelf(), so onDestroy may not come for a while
+            stopLogging();
+            stopForeground(true);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        startLogging();
+        startForeground(NOTIFICATION_ID, buildNotification(getString(R.string.logging_started)));
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        stopLogging();
+        unregisterReceiver(wakeupReceiver);
+        bleThread.quitSafely();
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Delivers the latest state of every device right away, then new states as they come.
+     * Main thread only.
+     */
+    void subscribe(ConnectionManager.Listener subscriber) {
+        subscribers.add(subscriber);
+        for (ArduinoState state : new ArrayList<>(latestStates.values())) {
+            subscriber.onState(state);
+        }
+    }
+
+    void unsubscribe(ConnectionManager.Listener subscriber) {
+        subscribers.remove(subscriber);
+        if (subscribers.isEmpty()) {
+            final ConnectionManager manager = connectionManager;
+            bleLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    manager.flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Can be read on any thread.
+     */
+    Metrics metrics() {
+        return metrics;
+    }
+
+    void sendDesiredTemperature(final String address, final float value) {
+        final ConnectionManager manager = connectionManager;
+        bleLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                manager.sendDesiredTemperature(address, value);
+            }
+        });
+    }
+
+    void sendConfig(final String address, final TempcConfig config) {
+        final ConnectionManager manager = connectionManager;
+        bleLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                manager.sendConfig(address, config);
+            }
+        });
+    }
+
+    void sendProgram(final String address, final CookProgram program) {
+        final ConnectionManager manager = connectionManager;
+        bleLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                manager.sendProgram(address, program);
+            }
+        });
+    }
+
+    private void startLogging() {
+        if (!logging) {
+            logging = true;
+            final ConnectionManager manager = connectionManager;
+            bleLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    manager.start();
+                }
+            });
+            scheduleWakeup();
+        }
+    }
+
+    /**
+     * Closes the connections and cancels the wakeup alarm.
+     */
+    private void stopLogging() {
+        if (logging) {
+            logging = false;
+            alarmManager.cancel(wakeupIntent);
+            final ConnectionManager manager = connectionManager;
+            bleLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    manager.stop();
+                }
+            });
+        }
+    }
+
+    private void scheduleWakeup() {
+        alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + WAKEUP_INTERVAL_MS, wakeupIntent);
+    }
+
+    /**
+     * Alerts with a sound when a device raises an alert it didn't have, removes the alert
+     * notification once all alerts of the device are gone.
+     */
+    private void showAlerts(ArduinoState state) {
+        Integer shown = shownAlerts.get(state.address);
+        int previous = shown == null ? 0 : shown;
+        if (state.alerts == previous) {
+            return;
+        }
+        shownAlerts.put(state.address, state.alerts);
+        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (state.alerts == 0) {
+            notificationManager.cancel(state.address, ALERT_NOTIFICATION_ID);
+        } else if ((state.alerts & ~previous) != 0) {
+            notificationManager.notify(state.address, ALERT_NOTIFICATION_ID, buildAlertNotification(describeAlerts(this, state.alerts)));
+        }
+    }
+
+    /**
+     * @return alerts of {@link AnomalyDetector} as text, null if there are none
+     */
+    static String describeAlerts(Context context, int alerts) {
+        StringBuilder text = new StringBuilder();
+        appendAlert(context, text, alerts, AnomalyDetector.SENSOR_FAULT, R.string.alert_sensor_fault);
+        appendAlert(context, text, alerts, AnomalyDetector.RUNAWAY, R.string.alert_runaway);
+        appendAlert(context, text, alerts, AnomalyDetector.STALL, R.string.alert_stall);
+        appendAlert(context, text, alerts, AnomalyDetector.OFF_SETPOINT, R.string.alert_off_setpoint);
+        return text.length() == 0 ? null : text.toString();
+    }
+
+    private static void appendAlert(Context context, StringBuilder text, int alerts, int alert, int description) {
+        if ((alerts & alert) != 0) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(context.getString(description));
+        }
+    }
+
+    /**
+     * @return directory with a {@link TemperatureLog} per device
+     */
+    static File logDir(Context context) {
+        return new File(context.getFilesDir(), "log");
+    }
+
+    private static String describe(ArduinoState state) {
+        if (state.desiredTemperature > MIN_TEMPERATURE) {
+            return String.format("%s/%s C", state.getTemperature(), state.desiredTemperature);
+        }
+        return String.format("%s C", state.getTemperature());
+    }
+
+    @SuppressWarnings("deprecation")
+    private Notification buildNotification(String text) {
+        Notification.Builder builder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? new Notification.Builder(this, CHANNEL_ID) : new Notification.Builder(this);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        PendingIntent stopIntent = PendingIntent.getService(this, 0, new Intent(this, TempcService.class).setAction(ACTION_STOP), 0);
+        return builder.setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(contentIntent)
+                .addAction(0, getString(R.string.stop_logging), stopIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setShowWhen(false)
+                .build();
+    }
+
+    @SuppressWarnings("deprecation")
+    private Notification buildAlertNotification(String text) {
+        Notification.Builder builder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? new Notification.Builder(this, ALERTS_CHANNEL_ID) : new Notification.Builder(this);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        return builder.setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(contentIntent)
+                .setPriority(Notification.PRIORITY_HIGH)
+                .setDefaults(Notification.DEFAULT_ALL)
+                .setAutoCancel(true)
+                .build();
+    }
+}
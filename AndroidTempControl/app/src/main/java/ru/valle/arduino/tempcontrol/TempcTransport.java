@@ -0,0 +1,72 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.UUID;
+
+/**
+ * BLE access used by {@link ConnectionManager} and {@link ArduinoStateListener}.
+ * All callbacks are delivered on the {@link EventLoop} the transport was created with.
+ */
+interface TempcTransport {
+    interface ScanListener {
+        void onDeviceFound(String address);
+
+        void onScanFailed(String reason);
+    }
+
+    /**
+     * Value arrays passed to the callbacks may be reused by the transport after the call returns.
+     */
+    interface LinkCallback {
+        void onConnected();
+
+        void onDisconnected(int status);
+
+        /**
+         * @param success true if the Tempc service was found
+         */
+        void onServicesDiscovered(boolean success);
+
+        void onRead(UUID uuid, boolean success, byte[] value);
+
+        void onWrite(UUID uuid, boolean success);
+
+        void onNotificationsEnabled(UUID uuid, boolean success);
+
+        void onNotification(UUID uuid, byte[] value);
+
+        /**
+         * @param mtu ATT MTU of the connection, meaningful on success only
+         */
+        void onMtuChanged(int mtu, boolean success);
+    }
+
+    /**
+     * GATT client connection to one device. Request methods return false if the request was refused;
+     * otherwise the matching {@link LinkCallback} method is called later.
+     */
+    interface Link {
+        boolean discoverServices();
+
+        boolean hasCharacteristic(UUID uuid);
+
+        boolean supportsNotifications(UUID uuid);
+
+        boolean read(UUID uuid);
+
+        boolean write(UUID uuid, byte[] value);
+
+        boolean enableNotifications(UUID uuid);
+
+        void disableNotifications(UUID uuid);
+
+        boolean requestMtu(int mtu);
+
+        void close();
+    }
+
+    boolean startScan(ScanListener listener);
+
+    void stopScan();
+
+    Link connect(String address, LinkCallback callback);
+}
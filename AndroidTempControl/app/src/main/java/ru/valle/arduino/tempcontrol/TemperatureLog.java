@@ -0,0 +1,272 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only log of samples split into segment files. A segment starts with a 16 byte header
+ * (magic, record size, base wall clock time in ms) followed by fixed-width records:
+ * time since the base in ms (int), temperature (float), desired temperature (float).
+ * Segments are named by sequence number, so they keep the order of writing when the wall
+ * clock goes back.
+ */
+final class TemperatureLog implements Closeable {
+    interface RecordConsumer {
+        void onRecord(long time, float temperature, float desiredTemperature);
+    }
+
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 12;
+    private static final int MAGIC = 0x54434c47;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAX_SEGMENT_RECORDS = 1 << 16;
+    private static final long MAX_LOG_BYTES = 32 * 1024 * 1024;
+    private static final int FLUSH_EVERY_RECORDS = 32;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final FilenameFilter SEGMENTS = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(SEGMENT_SUFFIX);
+        }
+    };
+
+    private final File dir;
+    private DataOutputStream out;
+    private long segmentBase;
+    private long nextSegment = -1;
+    private int segmentRecords;
+    private int unflushedRecords;
+
+    TemperatureLog(File dir) {
+        this.dir = dir;
+    }
+
+    void append(long time, float temperature, float desiredTemperature) throws IOException {
+        if (out == null || segmentRecords >= MAX_SEGMENT_RECORDS || time - segmentBase > Integer.MAX_VALUE || time < segmentBase) {
+            startSegment(time);
+        }
+        out.writeInt((int) (time - segmentBase));
+        out.writeFloat(temperature);
+        out.writeFloat(desiredTemperature);
+        segmentRecords++;
+        if (++unflushedRecords >= FLUSH_EVERY_RECORDS) {
+            flush();
+        }
+    }
+
+    void flush() throws IOException {
+        if (out != null && unflushedRecords > 0) {
+            out.flush();
+            unflushedRecords = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+                unflushedRecords = 0;
+            }
+        }
+    }
+
+    /**
+     * Passes up to maxRecords most recent records to the consumer, oldest first.
+     * Reads only the tails of the newest segments.
+     */
+    int readRecent(int maxRecords, RecordConsumer consumer) throws IOException {
+        flush();
+        File[] segments = listSegments();
+        List<byte[]> chunks = new ArrayList<>();
+        List<Long> bases = new ArrayList<>();
+        int remaining = maxRecords;
+        for (int i = segments.length - 1; i >= 0 && remaining > 0; i--) {
+            RandomAccessFile file = new RandomAccessFile(segments[i], "r");
+            try {
+                long length = file.length();
+                if (length < HEADER_SIZE || file.readInt() != MAGIC || file.readInt() != RECORD_SIZE) {
+                    continue;
+                }
+                long base = file.readLong();
+                int records = (int) Math.min(remaining, (length - HEADER_SIZE) / RECORD_SIZE);
+                long end = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+                byte[] chunk = new byte[records * RECORD_SIZE];
+                file.seek(end - chunk.length);
+                file.readFully(chunk);
+                chunks.add(chunk);
+                bases.add(base);
+                remaining -= records;
+            } finally {
+                file.close();
+            }
+        }
+        for (int i = chunks.size() - 1; i >= 0; i--) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunks.get(i));
+            long base = bases.get(i);
+            while (buffer.hasRemaining()) {
+                long time = base + (buffer.getInt() & 0xffffffffL);
+                consumer.onRecord(time, buffer.getFloat(), buffer.getFloat());
+            }
+        }
+        return maxRecords - remaining;
+    }
+
+    /**
+     * @return reader of all records written so far
+     */
+    Reader reader() throws IOException {
+        flush();
+        return new Reader(listSegments());
+    }
+
+    /**
+     * Reads all records, oldest first, segment by segment through a fixed size buffer, so memory
+     * use doesn't depend on the size of the log. Segments pruned before they are reached are skipped;
+     * records appended to a segment after it was opened are not read.
+     */
+    static final class Reader implements Closeable {
+        private final File[] segments;
+        private int nextSegment;
+        private DataInputStream in;
+        private long base, remaining;
+        private long time;
+        private float temperature, desiredTemperature;
+
+        private Reader(File[] segments) {
+            this.segments = segments;
+        }
+
+        /**
+         * @return false if there are no more records
+         */
+        boolean next() throws IOException {
+            while (remaining == 0) {
+                if (!openNextSegment()) {
+                    return false;
+                }
+            }
+            time = base + (in.readInt() & 0xffffffffL);
+            temperature = in.readFloat();
+            desiredTemperature = in.readFloat();
+            remaining--;
+            return true;
+        }
+
+        long time() {
+            return time;
+        }
+
+        float temperature() {
+            return temperature;
+        }
+
+        float desiredTemperature() {
+            return desiredTemperature;
+        }
+
+        @Override
+        public void close() throws IOException {
+            remaining = 0;
+            if (in != null) {
+                try {
+                    in.close();
+                } finally {
+                    in = null;
+                }
+            }
+        }
+
+        private boolean openNextSegment() throws IOException {
+            close();
+            if (nextSegment >= segments.length) {
+                return false;
+            }
+            FileInputStream file;
+            try {
+                file = new FileInputStream(segments[nextSegment++]);
+            } catch (FileNotFoundException e) {
+                return true;
+            }
+            in = new DataInputStream(new BufferedInputStream(file, READ_BUFFER_SIZE));
+            long length = file.getChannel().size();
+            if (length >= HEADER_SIZE && in.readInt() == MAGIC && in.readInt() == RECORD_SIZE) {
+                base = in.readLong();
+                remaining = (length - HEADER_SIZE) / RECORD_SIZE;
+            }
+            return true;
+        }
+    }
+
+    private File[] listSegments() {
+        File[] segments = dir.listFiles(SEGMENTS);
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private void startSegment(long time) throws IOException {
+        close();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        pruneOldSegments();
+        if (nextSegment < 0) {
+            nextSegment = lastSegmentNumber() + 1;
+        }
+        File segment = new File(dir, String.format(Locale.US, "%016d%s", nextSegment++, SEGMENT_SUFFIX));
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment)));
+        out.writeInt(MAGIC);
+        out.writeInt(RECORD_SIZE);
+        out.writeLong(time);
+        segmentBase = time;
+        segmentRecords = 0;
+    }
+
+    /**
+     * @return number of the newest segment, 0 if there are none; logs written before segments were
+     * numbered are named by their base time, which is still greater than any earlier name
+     */
+    private long lastSegmentNumber() {
+        File[] segments = listSegments();
+        for (int i = segments.length - 1; i >= 0; i--) {
+            String name = segments[i].getName();
+            try {
+                return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // not a segment of ours
+            }
+        }
+        return 0;
+    }
+
+    private void pruneOldSegments() {
+        File[] segments = listSegments();
+        long total = 0;
+        for (int i = segments.length - 1; i >= 0; i--) {
+            total += segments[i].length();
+            if (total > MAX_LOG_BYTES && !segments[i].delete()) {
+                break;
+            }
+        }
+    }
+}
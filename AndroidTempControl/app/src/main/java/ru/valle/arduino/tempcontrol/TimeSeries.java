@@ -0,0 +1,106 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Fixed capacity ring buffer of (timestamp, value) samples stored in primitive columns.
+ * There is a single writer; readers take a {@link Snapshot}, which is a view over the
+ * samples written so far and doesn't copy them.
+ */
+final class TimeSeries {
+    private final long[] times;
+    private final float[] values;
+    private final int capacity;
+    private volatile long written;
+
+    TimeSeries(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.capacity = capacity;
+        times = new long[capacity];
+        values = new float[capacity];
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Appends a sample; time never goes backwards, earlier timestamps are clamped to the last one.
+     */
+    void append(long time, float value) {
+        long index = written;
+        if (index > 0) {
+            time = Math.max(time, times[(int) ((index - 1) % capacity)]);
+        }
+        int slot = (int) (index % capacity);
+        times[slot] = time;
+        values[slot] = value;
+        written = index + 1;
+    }
+
+    Snapshot snapshot() {
+        long end = written;
+        return new Snapshot(this, Math.max(0, end - capacity), end);
+    }
+
+    /**
+     * Samples with absolute indices in [start, end). The writer may overwrite the oldest of them
+     * later on, so read the values first and then drop everything below {@link #firstIntact()}.
+     */
+    static final class Snapshot implements SampleView {
+        private final TimeSeries series;
+        private final long start, end;
+
+        private Snapshot(TimeSeries series, long start, long end) {
+            this.series = series;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public long start() {
+            return start;
+        }
+
+        @Override
+        public long end() {
+            return end;
+        }
+
+        int size() {
+            return (int) (end - start);
+        }
+
+        boolean isEmpty() {
+            return end == start;
+        }
+
+        @Override
+        public long time(long index) {
+            return series.times[(int) (index % series.capacity)];
+        }
+
+        @Override
+        public float value(long index) {
+            return series.values[(int) (index % series.capacity)];
+        }
+
+        long lastTime() {
+            return time(end - 1);
+        }
+
+        float lastValue() {
+            return value(end - 1);
+        }
+
+        @Override
+        public long firstIntact() {
+            return Math.max(start, series.written - series.capacity + 1);
+        }
+
+        @Override
+        public boolean continues(SampleView previous) {
+            return previous instanceof Snapshot && ((Snapshot) previous).series == series && previous.end() <= end;
+        }
+    }
+}
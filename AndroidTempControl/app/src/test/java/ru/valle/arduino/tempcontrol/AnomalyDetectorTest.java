@@ -0,0 +1,89 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnomalyDetectorTest {
+    private static final long SAMPLE_INTERVAL_MS = 5000;
+
+    @Test
+    public void quietWhileThePidControllerCooks() throws Exception {
+        CrockpotModel model = CrockpotModel.crockpot();
+        PidController pid = PidController.sketchDefaults();
+        pid.setDesiredTemperature(60);
+        AnomalyDetector detector = new AnomalyDetector();
+        boolean heating = false;
+        for (long time = 0; time < 6 * 3600_000L; time += SAMPLE_INTERVAL_MS) {
+            float temperature = Math.round(model.sensorTemperature() * 16) / 16f;
+            if (time % PidController.TICK_MS == 0) {
+                heating = pid.freqTick(temperature);
+            }
+            assertEquals("at " + time + " ms", 0, detector.update(time, temperature, 60));
+            model.step(SAMPLE_INTERVAL_MS / 1000.0, heating);
+        }
+        assertEquals(60, detector.mean(), 3);
+        assertEquals(0, detector.slope(), 0.2);
+    }
+
+    @Test
+    public void raisesSensorFaultOnRepeatedDisconnectedReadings() throws Exception {
+        AnomalyDetector detector = new AnomalyDetector();
+        long time = 0;
+        for (int i = 0; i < 10; i++) {
+            detector.update(time += SAMPLE_INTERVAL_MS, 40, 60);
+        }
+        assertEquals(0, detector.update(time += SAMPLE_INTERVAL_MS, AnomalyDetector.DEVICE_DISCONNECTED_C, 60));
+        assertEquals(0, detector.update(time += SAMPLE_INTERVAL_MS, 40, 60));
+        assertEquals(0, detector.update(time += SAMPLE_INTERVAL_MS, 85.5f, 60));
+        assertEquals(0, detector.update(time += SAMPLE_INTERVAL_MS, 40, 60));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0, detector.update(time += SAMPLE_INTERVAL_MS, AnomalyDetector.DEVICE_DISCONNECTED_C, 60));
+        }
+        assertEquals(AnomalyDetector.SENSOR_FAULT, detector.update(time += SAMPLE_INTERVAL_MS, AnomalyDetector.DEVICE_DISCONNECTED_C, 60));
+        assertEquals(0, detector.update(time += SAMPLE_INTERVAL_MS, 40, 60));
+        assertEquals(40, detector.mean(), 0.001);
+        // a jump that persists is a change of the level, not a fault
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, detector.update(time += SAMPLE_INTERVAL_MS, 20, 60) & AnomalyDetector.SENSOR_FAULT);
+        }
+        assertEquals(20, detector.mean(), 0.5);
+    }
+
+    @Test
+    public void raisesStallWhenTheTemperatureDoesNotRise() throws Exception {
+        AnomalyDetector detector = new AnomalyDetector();
+        long time = 0;
+        int alerts = 0;
+        for (; time < 19 * 60_000; time += SAMPLE_INTERVAL_MS) {
+            alerts |= detector.update(time, 30 + (time / SAMPLE_INTERVAL_MS % 2) / 16f, 60);
+        }
+        assertEquals(0, alerts);
+        for (; time < 30 * 60_000; time += SAMPLE_INTERVAL_MS) {
+            alerts |= detector.update(time, 30, 60);
+        }
+        assertEquals(AnomalyDetector.STALL, alerts);
+        // a new setpoint starts over
+        assertEquals(0, detector.update(time, 30, 40));
+    }
+
+    @Test
+    public void raisesRunawayAndOffSetpoint() throws Exception {
+        AnomalyDetector detector = new AnomalyDetector();
+        long time = 0;
+        float temperature = 55;
+        for (; time < 10 * 60_000; time += SAMPLE_INTERVAL_MS) {
+            assertEquals(0, detector.update(time, temperature, 60));
+            temperature = Math.min(60, temperature + 0.05f);
+        }
+        assertTrue(detector.timeAtSetpoint() > 0);
+        // the relay sticks closed
+        int alerts = 0;
+        for (; time < 30 * 60_000; time += SAMPLE_INTERVAL_MS) {
+            alerts |= detector.update(time, temperature += 0.05f, 60);
+        }
+        assertEquals(AnomalyDetector.RUNAWAY | AnomalyDetector.OFF_SETPOINT, alerts);
+        assertEquals(0.6, detector.slope(), 0.01);
+    }
+}
@@ -0,0 +1,430 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionManagerTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private File dir;
+    private VirtualEventLoop loop;
+    private final Set<String> knownAddresses = new LinkedHashSet<>();
+    private final ConnectionManager.DeviceStore deviceStore = new ConnectionManager.DeviceStore() {
+        @Override
+        public Collection<String> load() {
+            return new ArrayList<>(knownAddresses);
+        }
+
+        @Override
+        public void remember(String address) {
+            knownAddresses.add(address);
+        }
+    };
+    private final Metrics metrics = new Metrics();
+    private ArduinoState lastState;
+    private int samples;
+    private final ConnectionManager.Listener listener = new ConnectionManager.Listener() {
+        @Override
+        public void onState(ArduinoState state) {
+            if (state.history != null) {
+                samples++;
+                lastState = state;
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("tempc", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        loop = new VirtualEventLoop(1_500_000_000_000L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    @Test
+    public void sustainsThousandSamplesPerSecondWithDropoutsAndLinkLoss() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 2, 0.01, 0.0002, 42);
+        // heats and cools by about 1 C per millisecond around the setpoint, so every sample is notified
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 1, new CrockpotModel(22, 20000, 10, 400, 0.001));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(60_000);
+        manager.stop();
+        assertTrue("notifications " + device.notificationsSent, device.notificationsSent > 30_000);
+        assertTrue("samples " + samples, samples > device.notificationsSent * 9 / 10);
+        assertNotNull(lastState);
+        assertEquals(4096, lastState.history.size());
+        assertEquals(device.reportedTemperature, lastState.temperature, 1);
+    }
+
+    @Test
+    public void coalescedSetpointWriteReachesDevice() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 750, CrockpotModel.crockpot());
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(1000);
+        for (int i = 50; i <= 60; i++) {
+            manager.sendDesiredTemperature(ADDRESS, i);
+        }
+        loop.runFor(50);
+        assertEquals(60, device.desiredTemperature, 0);
+        assertTrue("writes " + device.setpointWrites, device.setpointWrites <= 2);
+        manager.stop();
+    }
+
+    @Test
+    public void sendsSetpointChangedWhileDisconnected() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(1000);
+        device.setInRange(false);
+        loop.runFor(1000);
+        manager.sendDesiredTemperature(ADDRESS, 60);
+        device.setInRange(true);
+        loop.runFor(60_000);
+        assertTrue(device.isConnected());
+        assertEquals(60, device.desiredTemperature, 0);
+        assertEquals(60, lastState.desiredTemperature, 0);
+        manager.stop();
+    }
+
+    @Test
+    public void writesConfigAndReadsBackWhatDeviceRuns() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(1000);
+        assertEquals(TempcConfig.sketchDefaults(), lastState.config);
+        TempcConfig config = new TempcConfig(10, 60, 200, 1000, 1.2f, 0.002f, 5);
+        manager.sendConfig(ADDRESS, config);
+        manager.sendConfig(ADDRESS, new TempcConfig(8, 60, 200, 1000, 1.2f, 0.002f, 5));
+        loop.runFor(1000);
+        assertEquals(1, device.configWrites);
+        assertEquals(config, device.config);
+        assertEquals(config, lastState.config);
+        int notifications = device.notificationsSent;
+        loop.runFor(10_000);
+        assertTrue(device.notificationsSent - notifications <= 10);
+        manager.stop();
+    }
+
+    @Test
+    public void rereadsWrittenValuesUntilDeviceAnswers() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, CrockpotModel.crockpot());
+        device.historyIntervalMs = 1000;
+        // the first read after a write returns the written value
+        device.answerDelayMs = 12;
+        device.setInRange(false);
+        loop.runFor(2 * 60_000);
+        device.setInRange(true);
+        long connectedAt = loop.elapsedRealtime();
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(5_000);
+        TimeSeries.Snapshot history = lastState.history;
+        int downloaded = 0;
+        for (long i = history.start(); i < history.end(); i++) {
+            if (history.time(i) < connectedAt) {
+                downloaded++;
+            }
+        }
+        assertTrue("downloaded " + downloaded, downloaded >= 115);
+
+        device.rejectsConfig = true;
+        manager.sendConfig(ADDRESS, new TempcConfig(10, 60, 200, 1000, 1.2f, 0.002f, 5));
+        loop.runFor(1000);
+        assertEquals(1, device.configWrites);
+        assertEquals(TempcConfig.sketchDefaults(), lastState.config);
+
+        CookProgram program = CookProgram.parse("30 C for 10 min");
+        manager.sendProgram(ADDRESS, program);
+        loop.runFor(1000);
+        assertEquals(program, lastState.program);
+        assertEquals(ProgramStatus.RUNNING, lastState.programStatus.state);
+        manager.stop();
+    }
+
+    @Test
+    public void reportsPidTelemetryOfEveryControlTick() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 1000, CrockpotModel.crockpot());
+        device.pid = PidController.sketchDefaults();
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(10 * 60_000);
+        manager.stop();
+        assertEquals(20, device.telemetrySent, 1);
+        assertEquals(device.telemetrySent, lastState.dutyCycle.size());
+        assertEquals(PidController.PWM_TICKS_COUNT, lastState.telemetry.pwmTicks);
+        // far below the setpoint the heater is on all the time
+        assertEquals(100, lastState.dutyCycle.lastValue(), 0);
+        assertEquals(0, lastState.integralTerm.lastValue(), 0);
+    }
+
+    @Test
+    public void runsUploadedCookProgramOnTheDevice() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 1000, CrockpotModel.crockpot());
+        device.pid = PidController.sketchDefaults();
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(3000);
+        assertEquals(CookProgram.NONE, lastState.program);
+        CookProgram program = CookProgram.parse("25 C for 2 min, ramp to 30 C, hold 1 min");
+        manager.sendProgram(ADDRESS, program);
+        loop.runFor(2000);
+        assertEquals(1, device.programWrites);
+        assertEquals(program, lastState.program);
+        assertEquals(ProgramStatus.RUNNING, lastState.programStatus.state);
+        assertEquals(25, device.desiredTemperature, 0);
+        assertEquals(25, lastState.programStatus.setpoint, 0);
+        loop.runFor(2 * 60_000);
+        assertEquals(1, lastState.programStatus.step);
+        assertEquals(30, lastState.programStatus.setpoint, 0);
+        while (lastState.programStatus.waiting) {
+            loop.runFor(60_000);
+        }
+        assertTrue(Math.abs(device.model.sensorTemperature() - 30) <= CookProgram.SETPOINT_BAND + 0.5);
+        assertEquals(30, lastState.desiredTemperature, 0);
+        loop.runFor(90_000);
+        assertEquals(ProgramStatus.FINISHED, lastState.programStatus.state);
+        assertEquals(30, device.desiredTemperature, 0);
+        // a manual setpoint cancels a running program
+        manager.sendProgram(ADDRESS, program);
+        loop.runFor(1000);
+        manager.sendDesiredTemperature(ADDRESS, 40);
+        loop.runFor(1000);
+        assertEquals(ProgramStatus.IDLE, lastState.programStatus.state);
+        loop.runFor(5 * 60_000);
+        assertEquals(40, device.desiredTemperature, 0);
+        manager.stop();
+    }
+
+    @Test
+    public void reconnectsAfterLinkLoss() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(5_000);
+        assertTrue(device.isConnected());
+        device.dropConnection();
+        loop.runFor(100);
+        int samplesBeforeReconnect = samples;
+        loop.runFor(5_000);
+        assertTrue(device.isConnected());
+        assertTrue(samples > samplesBeforeReconnect);
+        assertEquals(1, metrics.counter(ADDRESS + " reconnects").get());
+        assertEquals(1, metrics.histogram(ADDRESS + " reconnect_ms").count());
+        assertTrue(metrics.histogram(ADDRESS + " gatt.latency_ms").count() > 0);
+        manager.stop();
+    }
+
+    @Test
+    public void logsSamplesOnlyWithKnownSetpoint() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        // every sample changes the temperature, so notifications come before the setpoint is read
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 1, new CrockpotModel(22, 20000, 10, 400, 0.001));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(2_000);
+        device.dropConnection();
+        loop.runFor(3_000);
+        assertTrue(device.isConnected());
+        manager.stop();
+        TemperatureLog.Reader reader = new TemperatureLog(new File(dir, ADDRESS.replace(":", ""))).reader();
+        int logged = 0;
+        while (reader.next()) {
+            assertEquals(device.desiredTemperature, reader.desiredTemperature(), 0);
+            logged++;
+        }
+        reader.close();
+        assertTrue(logged > 0);
+    }
+
+    @Test
+    public void downloadsSamplesRecordedWhileOutOfRange() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0.01, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, CrockpotModel.crockpot());
+        device.historyIntervalMs = 1000;
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(5_000);
+        device.setInRange(false);
+        long lostAt = loop.elapsedRealtime();
+        loop.runFor(5 * 60_000);
+        long foundAt = loop.elapsedRealtime();
+        device.setInRange(true);
+        loop.runFor(2 * 60_000);
+        assertTrue(device.isConnected());
+        TimeSeries.Snapshot history = lastState.history;
+        int inGap = 0;
+        for (long i = history.start(); i < history.end(); i++) {
+            if (i > history.start()) {
+                assertTrue(history.time(i) >= history.time(i - 1));
+            }
+            if (history.time(i) > lostAt + 1000 && history.time(i) < foundAt) {
+                inGap++;
+            }
+        }
+        // the device records a sample a second while out of range
+        assertTrue("samples in gap " + inGap, inGap >= 290);
+        manager.stop();
+    }
+
+    @Test
+    public void connectsToKnownDeviceBeforeScanFinishes() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(1000);
+        manager.stop();
+        assertEquals(1, transport.scans);
+        assertTrue(knownAddresses.contains(ADDRESS));
+
+        int connects = transport.connects;
+        manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        // connected at once, without waiting for the scan to report the device
+        assertEquals(connects + 1, transport.connects);
+        int samplesBefore = samples;
+        loop.runFor(1000);
+        assertEquals(2, transport.scans);
+        assertTrue(samples > samplesBefore);
+        assertEquals(connects + 1, transport.connects);
+        manager.stop();
+    }
+
+    @Test
+    public void findsNewDeviceWhileConnectedToKnownOne() throws Exception {
+        knownAddresses.add(ADDRESS);
+        String newAddress = "66:77:88:99:AA:BB";
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device known = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        SimulatedTempcTransport.Device found = transport.addDevice(newAddress, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(1000);
+        assertTrue(known.isConnected());
+        assertTrue(found.isConnected());
+        assertTrue(knownAddresses.contains(newAddress));
+        manager.stop();
+    }
+
+    @Test
+    public void showsLastKnownStateBeforeConnecting() throws Exception {
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(10_000);
+        manager.stop();
+        ArduinoState saved = lastState;
+        device.setInRange(false);
+
+        lastState = null;
+        manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        // before the log is read or the link is up
+        assertNotNull(lastState);
+        assertEquals("Connecting to " + ADDRESS, lastState.message);
+        assertEquals(saved.temperature, lastState.temperature, 0);
+        assertEquals(saved.desiredTemperature, lastState.desiredTemperature, 0);
+        assertEquals(TempcConfig.sketchDefaults(), lastState.config);
+        assertEquals(saved.history.size(), lastState.history.size());
+        assertEquals(saved.history.lastTime(), lastState.history.lastTime(), 1);
+        assertEquals(1, metrics.histogram(ADDRESS + " snapshot_restore_ms").count());
+        loop.runFor(1);
+        assertEquals(1, metrics.histogram(ADDRESS + " history_restore_ms").count());
+        assertEquals(saved.history.size(), lastState.history.size());
+        assertNotNull(lastState.message);
+        device.setInRange(true);
+        loop.runFor(60_000);
+        assertTrue(device.isConnected());
+        assertNull(lastState.message);
+        manager.stop();
+    }
+
+    @Test
+    public void reconnectsAtOnceWhenWokenUp() throws Exception {
+        knownAddresses.add(ADDRESS);
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(10 * 60_000);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        // the backoff delay is up to a minute, the wakeup alarm doesn't wait for it
+        assertEquals(1, manager.reconnectDisconnected());
+        loop.runFor(1000);
+        assertTrue(device.isConnected());
+        assertEquals(0, manager.reconnectDisconnected());
+        manager.stop();
+    }
+
+    @Test
+    public void retriesConnectThatNeverCallsBack() throws Exception {
+        knownAddresses.add(ADDRESS);
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        device.ignoresConnects = true;
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(1000);
+        assertEquals(1, transport.connects);
+        device.ignoresConnects = false;
+        loop.runFor(60_000);
+        assertTrue(device.isConnected());
+        assertEquals(2, transport.connects);
+        manager.stop();
+    }
+
+    @Test
+    public void backsOffWhileDeviceIsOutOfRange() throws Exception {
+        knownAddresses.add(ADDRESS);
+        SimulatedTempcTransport transport = new SimulatedTempcTransport(loop, 5, 0, 0, 1);
+        ConnectionManager manager = new ConnectionManager(transport, loop, dir, deviceStore, listener, metrics);
+        manager.start();
+        loop.runFor(10 * 60_000);
+        // 500 ms doubling up to a minute: about 6 attempts to reach the cap, then one a minute at most
+        assertTrue("connects " + transport.connects, transport.connects >= 10 && transport.connects <= 25);
+        SimulatedTempcTransport.Device device = transport.addDevice(ADDRESS, 100, new CrockpotModel(22, 2000, 50, 1, 0.01));
+        loop.runFor(60_000);
+        assertTrue(device.isConnected());
+        assertTrue(samples > 0);
+        manager.stop();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
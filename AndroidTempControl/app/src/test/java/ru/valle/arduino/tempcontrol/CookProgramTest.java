@@ -0,0 +1,92 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CookProgramTest {
+    @Test
+    public void parsesRequestExample() throws Exception {
+        CookProgram program = CookProgram.parse("ramp to 60 \u00b0C, hold 2 h, then 80 \u00b0C for 6 h");
+        assertEquals(Arrays.asList(new CookProgram.Step(60, 120, true), new CookProgram.Step(80, 360, false)), program.steps);
+        assertEquals("ramp to 60 C, hold 2 h, 80 C for 6 h", program.toString());
+        assertEquals(program, CookProgram.parse(program.toString()));
+    }
+
+    @Test
+    public void parsesStepsAndUnits() throws Exception {
+        CookProgram program = CookProgram.parse("Ramp to 40C; 55.5 c for 90 min\nhold 1 hour 30 mins then ramp to -10.03 C then 70 for 2 hrs 5 m");
+        assertEquals(Arrays.asList(
+                new CookProgram.Step(40, 0, true),
+                new CookProgram.Step(55.5f, 90, false),
+                // a hold after a timed step is a step of its own, after a ramp it is merged into it
+                new CookProgram.Step(55.5f, 90, true),
+                // setpoints are rounded to the 1/16 C the controller keeps
+                new CookProgram.Step(-10f, 0, true),
+                new CookProgram.Step(70, 125, false)), program.steps);
+        assertEquals(program, CookProgram.parse(program.toString()));
+        assertTrue(program.isValid());
+    }
+
+    @Test
+    public void encodesSketchLayout() throws Exception {
+        CookProgram program = CookProgram.parse("ramp to 60 C, hold 2 h, -10.5 C for 6 h");
+        byte[] value = program.encode();
+        assertArrayEquals(new byte[]{
+                CookProgram.VERSION, 2,
+                (byte) 0xc0, 0x03, 120, 0, CookProgram.WAIT_FOR_SETPOINT, 0,
+                (byte) 0x58, (byte) 0xff, 0x68, 0x01, 0, 0}, value);
+        assertEquals(program, CookProgram.decode(value));
+        assertEquals(program, CookProgram.decode(Arrays.copyOf(value, value.length + 4)));
+        assertTrue(CookProgram.decode(CookProgram.NONE.encode()).steps.isEmpty());
+        assertNull(CookProgram.decode(Arrays.copyOf(value, value.length - 1)));
+        assertNull(CookProgram.decode(new byte[]{CookProgram.VERSION}));
+        assertNull(CookProgram.decode(new byte[]{CookProgram.VERSION, CookProgram.MAX_STEPS + 1}));
+        value[0] = CookProgram.VERSION + 1;
+        assertNull(CookProgram.decode(value));
+    }
+
+    @Test
+    public void rejectsInvalidPrograms() throws Exception {
+        for (String invalid : new String[]{"", " , ", "boil", "hold 1 h", "ramp to 150 C", "-50 C for 1 h",
+                "60 C for 2 days", "60 C for 1093 h", "ramp to", "60 C"}) {
+            try {
+                CookProgram.parse(invalid);
+                fail(invalid);
+            } catch (IllegalArgumentException expected) {
+                // the message names the step
+            }
+        }
+        List<String> steps = new ArrayList<>();
+        for (int i = 0; i < CookProgram.MAX_STEPS; i++) {
+            steps.add("50 C for 1 min");
+        }
+        assertEquals(CookProgram.MAX_STEPS, CookProgram.parse(join(steps)).steps.size());
+        steps.add("50 C for 1 min");
+        try {
+            CookProgram.parse(join(steps));
+            fail("more than " + CookProgram.MAX_STEPS + " steps");
+        } catch (IllegalArgumentException expected) {
+            // more than the sketch holds
+        }
+        assertFalse(new CookProgram(Arrays.asList(new CookProgram.Step(150, 0, true))).isValid());
+        assertFalse(new CookProgram(Arrays.asList(new CookProgram.Step(60, CookProgram.MAX_DURATION_MINUTES + 1, false))).isValid());
+    }
+
+    private static String join(List<String> steps) {
+        StringBuilder text = new StringBuilder();
+        for (String step : steps) {
+            text.append(step).append(", ");
+        }
+        return text.toString();
+    }
+}
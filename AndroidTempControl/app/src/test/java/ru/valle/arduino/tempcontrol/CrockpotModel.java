@@ -0,0 +1,58 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Lumped thermal model of a crockpot: a relay switched heater, losses to the ambient air
+ * proportional to the temperature difference, and a probe that lags behind the water.
+ */
+final class CrockpotModel {
+    private final double ambient, heaterPower, heatCapacity, lossCoefficient, sensorTimeConstant;
+    private double waterTemperature, sensorTemperature;
+
+    /**
+     * @param ambient            ambient temperature, C
+     * @param heaterPower        heater power, W
+     * @param heatCapacity       heat capacity of the pot and its content, J/C
+     * @param lossCoefficient    heat loss, W/C of difference with ambient
+     * @param sensorTimeConstant probe lag, s
+     */
+    CrockpotModel(double ambient, double heaterPower, double heatCapacity, double lossCoefficient, double sensorTimeConstant) {
+        this.ambient = ambient;
+        this.heaterPower = heaterPower;
+        this.heatCapacity = heatCapacity;
+        this.lossCoefficient = lossCoefficient;
+        this.sensorTimeConstant = sensorTimeConstant;
+        waterTemperature = ambient;
+        sensorTemperature = ambient;
+    }
+
+    /**
+     * 3.5 l of water in a 200 W crockpot in a 22 C kitchen.
+     */
+    static CrockpotModel crockpot() {
+        return new CrockpotModel(22, 200, 3.5 * 4186 + 2000, 1.6, 20);
+    }
+
+    /**
+     * @return a model with the same parameters, at ambient temperature
+     */
+    CrockpotModel atAmbient() {
+        return new CrockpotModel(ambient, heaterPower, heatCapacity, lossCoefficient, sensorTimeConstant);
+    }
+
+    void step(double seconds, boolean heating) {
+        double power = (heating ? heaterPower : 0) - lossCoefficient * (waterTemperature - ambient);
+        waterTemperature += power * seconds / heatCapacity;
+        sensorTemperature += (waterTemperature - sensorTemperature) * (1 - Math.exp(-seconds / sensorTimeConstant));
+    }
+
+    double waterTemperature() {
+        return waterTemperature;
+    }
+
+    /**
+     * @return probe reading quantized to the 1/16 C step of a 12-bit DS18B20
+     */
+    float sensorTemperature() {
+        return Math.round(sensorTemperature * 16) / 16f;
+    }
+}
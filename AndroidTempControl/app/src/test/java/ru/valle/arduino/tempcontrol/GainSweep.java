@@ -0,0 +1,69 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a {@link PidSimulation} for every combination of the given gains on a fork/join pool
+ * and ranks the results, best first.
+ */
+final class GainSweep {
+    private static final int SEQUENTIAL_THRESHOLD = 4;
+
+    private GainSweep() {
+    }
+
+    static List<PidSimulation.Result> run(ForkJoinPool pool, PidSimulation simulation, float[] kps, float[] kis, float[] kds) {
+        PidSimulation.Result[] results = new PidSimulation.Result[kps.length * kis.length * kds.length];
+        pool.invoke(new Task(simulation, kps, kis, kds, results, 0, results.length));
+        Arrays.sort(results);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return count values evenly spaced from min to max inclusive
+     */
+    static float[] range(float min, float max, int count) {
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = count == 1 ? min : min + (max - min) * i / (count - 1);
+        }
+        return values;
+    }
+
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PidSimulation simulation;
+        private final float[] kps, kis, kds;
+        private final PidSimulation.Result[] results;
+        private final int from, to;
+
+        Task(PidSimulation simulation, float[] kps, float[] kis, float[] kds, PidSimulation.Result[] results, int from, int to) {
+            this.simulation = simulation;
+            this.kps = kps;
+            this.kis = kis;
+            this.kds = kds;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    int kd = i % kds.length;
+                    int ki = i / kds.length % kis.length;
+                    int kp = i / kds.length / kis.length;
+                    results[i] = simulation.run(kps[kp], kis[ki], kds[kd]);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Task(simulation, kps, kis, kds, results, from, middle),
+                        new Task(simulation, kps, kis, kds, results, middle, to));
+            }
+        }
+    }
+}
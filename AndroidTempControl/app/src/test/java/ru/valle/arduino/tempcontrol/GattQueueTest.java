@@ -0,0 +1,81 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class GattQueueTest {
+    private static final long TIMEOUT_MS = 100;
+    private final VirtualEventLoop loop = new VirtualEventLoop(0);
+    private final GattQueue queue = new GattQueue(loop, TIMEOUT_MS, 3, new Metrics(), "");
+    private final List<String> results = new ArrayList<>();
+    private String lastReply;
+
+    /**
+     * Read of the characteristic answered after the given delay, per attempt.
+     */
+    private final class DelayedRead extends GattQueue.Operation {
+        private final String name;
+        private final long[] delays;
+        private int attempt;
+
+        DelayedRead(String name, long... delays) {
+            super(TempcProfile.STATE_CHARACTERISTIC_UUID, null);
+            this.name = name;
+            this.delays = delays;
+        }
+
+        @Override
+        boolean start() {
+            final String reply = name + "#" + ++attempt;
+            loop.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    lastReply = reply;
+                    queue.onComplete(uuid, true);
+                }
+            }, delays[attempt - 1]);
+            return true;
+        }
+
+        @Override
+        void onDone(boolean success) {
+            results.add(name + " " + success + " " + lastReply);
+        }
+    }
+
+    @Test
+    public void dropsLateCallbackOfTimedOutAttempt() throws Exception {
+        queue.enqueue(new DelayedRead("first", 150, 80));
+        queue.enqueue(new DelayedRead("second", 80));
+        loop.runFor(1000);
+        assertEquals(2, results.size());
+        assertEquals("first true first#2", results.get(0));
+        assertEquals("second true second#1", results.get(1));
+    }
+
+    @Test
+    public void recoversWhenLateCallbackNeverComes() throws Exception {
+        final UUID uuid = TempcProfile.STATE_CHARACTERISTIC_UUID;
+        queue.enqueue(new GattQueue.Operation(uuid, null) {
+            @Override
+            boolean start() {
+                return true;
+            }
+
+            @Override
+            void onDone(boolean success) {
+                results.add("lost " + success);
+            }
+        });
+        loop.runFor(1000);
+        queue.enqueue(new DelayedRead("next", 10, 10, 10, 10));
+        loop.runFor(1000);
+        assertEquals("lost false", results.get(0));
+        assertEquals("next true next#2", results.get(1));
+    }
+}
@@ -0,0 +1,70 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GraphFeedTest {
+    private final List<Float> ys = new ArrayList<>();
+    private int maxShown;
+    private final GraphFeed.Sink sink = new GraphFeed.Sink() {
+        @Override
+        public void resetPoints(float[] xs, float[] values, int offset, int count) {
+            ys.clear();
+            for (int i = offset; i < offset + count; i++) {
+                ys.add(values[i]);
+            }
+            maxShown = Math.max(maxShown, ys.size());
+        }
+
+        @Override
+        public void appendPoint(float x, float y, int maxPoints) {
+            if (ys.size() >= maxPoints) {
+                ys.remove(0);
+            }
+            ys.add(y);
+            maxShown = Math.max(maxShown, ys.size());
+        }
+
+        @Override
+        public void setViewport(float minX, float maxX) {
+        }
+    };
+
+    @Test
+    public void longHistoryIsDownsampledWithoutLosingSpikes() throws Exception {
+        TimeSeries history = new TimeSeries(4096);
+        Downsampler downsampler = new Downsampler(Downsampler.DEFAULT_BUCKET_WIDTHS, Downsampler.DEFAULT_BUCKETS_PER_LEVEL);
+        GraphFeed feed = new GraphFeed(TimeUnit.HOURS.toMillis(24), sink);
+        long twelveHours = TimeUnit.HOURS.toSeconds(12);
+        for (long second = 0; second < twelveHours; second++) {
+            float value = second == twelveHours / 2 ? 99 : 60;
+            history.append(second * 1000, value);
+            downsampler.add(second * 1000, value);
+            feed.update(history.snapshot(), downsampler);
+        }
+        assertEquals(2, feed.shownLevel());
+        assertTrue("shown " + maxShown, maxShown <= GraphFeed.MAX_POINTS + 1);
+        assertTrue(ys.contains(99f));
+    }
+
+    @Test
+    public void shortHistoryShowsRawSamples() throws Exception {
+        TimeSeries history = new TimeSeries(4096);
+        Downsampler downsampler = new Downsampler(Downsampler.DEFAULT_BUCKET_WIDTHS, Downsampler.DEFAULT_BUCKETS_PER_LEVEL);
+        GraphFeed feed = new GraphFeed(TimeUnit.HOURS.toMillis(24), sink);
+        for (int i = 0; i < 500; i++) {
+            history.append(i * 1000, i);
+            downsampler.add(i * 1000, i);
+            feed.update(history.snapshot(), downsampler);
+        }
+        assertEquals(GraphFeed.RAW, feed.shownLevel());
+        assertEquals(500, ys.size());
+        assertEquals(499f, ys.get(499), 0);
+    }
+}
@@ -0,0 +1,39 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void histogramQuantilesAreBucketBounds() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram latency = metrics.histogram("latency_ms");
+        assertSame(latency, metrics.histogram("latency_ms"));
+        for (int i = 1; i <= 100; i++) {
+            latency.record(i);
+        }
+        latency.record(5000);
+        assertEquals(101, latency.count());
+        assertEquals(5000, latency.max());
+        assertEquals((5050 + 5000) / 101.0, latency.mean(), 1e-9);
+        assertEquals(63, latency.quantile(0.5));
+        assertEquals(127, latency.quantile(0.9));
+        assertEquals(5000, latency.quantile(1));
+        latency.record(-1);
+        assertEquals(0, metrics.histogram("empty").quantile(0.5));
+    }
+
+    @Test
+    public void reportsEveryMetric() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("b").increment();
+        metrics.counter("a").increment();
+        metrics.counter("a").increment();
+        metrics.histogram("c").record(3);
+        String report = metrics.report();
+        assertTrue(report, report.startsWith("a 2\nb 1\nc count=1 mean=3.0 p50=3 p90=3 p99=3 max=3\n"));
+    }
+}
@@ -0,0 +1,98 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Runs a {@link PidController} against a {@link CrockpotModel} heating from the ambient
+ * temperature to a setpoint and measures how well it got there: overshoot of the water
+ * temperature and the time after which it stays within a band around the setpoint.
+ */
+final class PidSimulation {
+    private static final long STEP_MS = 1000;
+    private final CrockpotModel model;
+    private final float setpoint;
+    private final long durationMs;
+    private final float band;
+
+    /**
+     * @param model      parameters of the pot, its temperature is ignored
+     * @param durationMs simulated time of one run
+     * @param band       allowed deviation from the setpoint once settled, C
+     */
+    PidSimulation(CrockpotModel model, float setpoint, long durationMs, float band) {
+        this.model = model;
+        this.setpoint = setpoint;
+        this.durationMs = durationMs;
+        this.band = band;
+    }
+
+    static final class Result implements Comparable<Result> {
+        /**
+         * Minutes of settling time one degree of overshoot is as bad as.
+         */
+        static final double OVERSHOOT_PENALTY_MINUTES = 10;
+
+        final float kp, ki, kd;
+        /**
+         * Max water temperature above the setpoint, C.
+         */
+        final double overshoot;
+        /**
+         * Time from the start until the water stays within the band, ms; Long.MAX_VALUE if it never settles.
+         */
+        final long settlingTime;
+
+        Result(float kp, float ki, float kd, double overshoot, long settlingTime) {
+            this.kp = kp;
+            this.ki = ki;
+            this.kd = kd;
+            this.overshoot = overshoot;
+            this.settlingTime = settlingTime;
+        }
+
+        boolean settled() {
+            return settlingTime != Long.MAX_VALUE;
+        }
+
+        /**
+         * @return settling time in minutes plus the overshoot penalty, lower is better
+         */
+        double score() {
+            return settled() ? settlingTime / 60_000.0 + overshoot * OVERSHOOT_PENALTY_MINUTES : Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public int compareTo(Result other) {
+            int result = Double.compare(score(), other.score());
+            return result != 0 ? result : Double.compare(overshoot, other.overshoot);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("KP %.3f KI %.5f KD %.2f: overshoot %.2f C, settled %s", kp, ki, kd, overshoot,
+                    settled() ? String.format("in %.1f min", settlingTime / 60_000.0) : "never");
+        }
+    }
+
+    Result run(float kp, float ki, float kd) {
+        CrockpotModel pot = model.atAmbient();
+        PidController controller = new PidController(kp, ki, kd);
+        controller.setDesiredTemperature(setpoint);
+        boolean heating = false;
+        double maxTemperature = Double.NEGATIVE_INFINITY;
+        long lastOutside = 0;
+        long nextTick = 0;
+        for (long time = 0; time < durationMs; time += STEP_MS) {
+            if (time >= nextTick) {
+                heating = controller.freqTick(pot.sensorTemperature());
+                nextTick += PidController.TICK_MS;
+            }
+            pot.step(STEP_MS / 1000.0, heating);
+            double temperature = pot.waterTemperature();
+            maxTemperature = Math.max(maxTemperature, temperature);
+            if (Math.abs(temperature - setpoint) > band) {
+                lastOutside = time + STEP_MS;
+            }
+        }
+        return new Result(kp, ki, kd, Math.max(0, maxTemperature - setpoint),
+                lastOutside >= durationMs ? Long.MAX_VALUE : lastOutside);
+    }
+}
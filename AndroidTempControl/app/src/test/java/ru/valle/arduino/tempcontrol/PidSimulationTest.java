@@ -0,0 +1,46 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PidSimulationTest {
+    @Test
+    public void controllerSwitchesRelayLikeSketch() throws Exception {
+        PidController controller = PidController.sketchDefaults();
+        controller.setDesiredTemperature(60);
+        // KP * 0.5 + KI * 0.5 = 0.353, 5 * 0.353 truncates to one heat quant per PWM period
+        assertTrue(controller.freqTick(59.5f));
+        for (int i = 1; i < PidController.PWM_TICKS_COUNT; i++) {
+            assertFalse(controller.freqTick(59.5f));
+        }
+        assertEquals(0.5f, controller.errorP(), 0);
+        assertEquals(0.5f, controller.errorI(), 0);
+        // far below the setpoint the integral resets and the relay stays on for the whole period
+        for (int i = 0; i < PidController.PWM_TICKS_COUNT; i++) {
+            assertTrue(controller.freqTick(20));
+        }
+        assertEquals(0, controller.errorI(), 0);
+    }
+
+    @Test
+    public void sweepRanksSettlingGainsFirst() throws Exception {
+        PidSimulation simulation = new PidSimulation(CrockpotModel.crockpot(), 60, TimeUnit.HOURS.toMillis(6), 0.5f);
+        PidController defaults = PidController.sketchDefaults();
+        assertTrue(simulation.run(defaults.kp, defaults.ki, defaults.kd).settled());
+
+        List<PidSimulation.Result> results = GainSweep.run(new ForkJoinPool(2), simulation,
+                GainSweep.range(0.2f, 2, 4), GainSweep.range(0, 0.01f, 3), GainSweep.range(0, 20, 3));
+        assertEquals(4 * 3 * 3, results.size());
+        assertTrue(results.get(0).settled());
+        for (int i = 1; i < results.size(); i++) {
+            assertTrue(results.get(i - 1).score() <= results.get(i).score());
+        }
+    }
+}
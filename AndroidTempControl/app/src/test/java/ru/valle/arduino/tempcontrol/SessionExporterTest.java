@@ -0,0 +1,81 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class SessionExporterTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("export", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        TemperatureLog log = new TemperatureLog(dir);
+        for (int i = 0; i < 3; i++) {
+            log.append(1_500_000_000_000L + i * 30_000, 20 + i, 45);
+        }
+        log.close();
+        // a new segment, after a gap that doesn't fit an int delta
+        log = new TemperatureLog(dir);
+        log.append(1_600_000_000_000L, 63.4375f, 60);
+        log.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void writesCsv() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TemperatureLog.Reader reader = new TemperatureLog(dir).reader();
+        assertEquals(4, SessionExporter.write(SessionExporter.CSV, reader, out));
+        reader.close();
+        assertEquals(SessionExporter.CSV_HEADER
+                        + "2017-07-14T02:40:00.000Z,20.0,45.0\n"
+                        + "2017-07-14T02:40:30.000Z,21.0,45.0\n"
+                        + "2017-07-14T02:41:00.000Z,22.0,45.0\n"
+                        + "2020-09-13T12:26:40.000Z,63.4375,60.0\n",
+                out.toString("UTF-8"));
+    }
+
+    @Test
+    public void writesBinary() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TemperatureLog.Reader reader = new TemperatureLog(dir).reader();
+        assertEquals(4, SessionExporter.write(SessionExporter.BINARY, reader, out));
+        reader.close();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(SessionExporter.BINARY_MAGIC, in.readInt());
+        assertEquals(SessionExporter.BINARY_VERSION, in.readInt());
+        assertEquals(1_500_000_000_000L, in.readLong());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i == 0 ? 0 : 30_000, in.readInt());
+            assertEquals(20 + i, in.readFloat(), 0);
+            assertEquals(45, in.readFloat(), 0);
+        }
+        assertEquals(SessionExporter.ABSOLUTE_TIME, in.readInt());
+        assertEquals(1_600_000_000_000L, in.readLong());
+        assertEquals(63.4375f, in.readFloat(), 0);
+        assertEquals(60, in.readFloat(), 0);
+        assertEquals(-1, in.read());
+    }
+}
@@ -0,0 +1,63 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SetpointEstimatorTest {
+    private static final long SAMPLE_INTERVAL_MS = 5000;
+
+    @Test
+    public void predictsHeatingAndCooling() throws Exception {
+        CrockpotModel model = CrockpotModel.crockpot();
+        assertPrediction(model, true, 60);
+        while (model.sensorTemperature() < 80) {
+            model.step(SAMPLE_INTERVAL_MS / 1000.0, true);
+        }
+        assertPrediction(model, false, 50);
+    }
+
+    @Test
+    public void unknownUntilEnoughSamplesAndAfterSetpointChange() throws Exception {
+        SetpointEstimator estimator = new SetpointEstimator();
+        assertTrue(Float.isNaN(estimator.rate()));
+        long time = 0;
+        for (int i = 0; i < 20; i++) {
+            estimator.add(time += SAMPLE_INTERVAL_MS, 40 + i / 16f, 60);
+        }
+        assertEquals(0.75, estimator.rate(), 0.01);
+        assertEquals(20 / 0.75, estimator.minutesToSetpoint(), 1);
+        estimator.add(time += SAMPLE_INTERVAL_MS, AnomalyDetector.DEVICE_DISCONNECTED_C, 60);
+        assertEquals(0.75, estimator.rate(), 0.01);
+        estimator.add(time += SAMPLE_INTERVAL_MS, 41.25f, 50);
+        assertTrue(Float.isNaN(estimator.minutesToSetpoint()));
+    }
+
+    /**
+     * Runs the model with the heater on or off until it reaches the setpoint, compares that time
+     * with the prediction made half way there.
+     */
+    private static void assertPrediction(CrockpotModel model, boolean heating, float setpoint) {
+        float halfWay = (model.sensorTemperature() + setpoint) / 2;
+        SetpointEstimator estimator = new SetpointEstimator();
+        long time = 0;
+        float predicted = SetpointEstimator.UNKNOWN;
+        long predictedAt = 0;
+        while (true) {
+            float temperature = model.sensorTemperature();
+            if (heating ? temperature >= setpoint : temperature <= setpoint) {
+                break;
+            }
+            estimator.add(time, temperature, setpoint);
+            if (Float.isNaN(predicted) && (heating ? temperature >= halfWay : temperature <= halfWay)) {
+                predicted = estimator.minutesToSetpoint();
+                predictedAt = time;
+            }
+            model.step(SAMPLE_INTERVAL_MS / 1000.0, heating);
+            time += SAMPLE_INTERVAL_MS;
+        }
+        float actual = (time - predictedAt) / 60_000f;
+        assertEquals("heating " + heating, actual, predicted, actual * 0.1);
+    }
+}
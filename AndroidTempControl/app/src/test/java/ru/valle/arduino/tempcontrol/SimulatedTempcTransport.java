@@ -0,0 +1,574 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * In-process {@link TempcTransport} that emulates Tempc sketches: the state, setpoint, config,
+ * telemetry, history and program characteristics, notifications, MTU exchange, cook programs
+ * advanced every control period, a {@link CrockpotModel}
+ * driven by the relay, switched around the setpoint or by a {@link PidController},
+ * request latency, writes answered later in the loop, dropped callbacks and link loss. Runs
+ * on any {@link EventLoop}, usually a {@link VirtualEventLoop} in unit tests.
+ */
+final class SimulatedTempcTransport implements TempcTransport {
+    static final int STATUS_LINK_LOST = 8;
+    static final int STATUS_CONNECT_FAILED = 133;
+    static final int HISTORY_CAPACITY = 1024;
+
+    private final EventLoop loop;
+    private final long latencyMs;
+    private final double dropoutRate, linkLossRate;
+    private final Random random;
+    private final Map<String, Device> devices = new LinkedHashMap<>();
+    private ScanListener scanListener;
+    int scans, connects;
+
+    /**
+     * @param latencyMs    delay of every callback
+     * @param dropoutRate  probability that a read/write/subscribe callback never arrives
+     * @param linkLossRate probability to lose the connection on every device sample
+     */
+    SimulatedTempcTransport(EventLoop loop, long latencyMs, double dropoutRate, double linkLossRate, long seed) {
+        this.loop = loop;
+        this.latencyMs = latencyMs;
+        this.dropoutRate = dropoutRate;
+        this.linkLossRate = linkLossRate;
+        random = new Random(seed);
+    }
+
+    Device addDevice(String address, long sampleIntervalMs, CrockpotModel model) {
+        Device device = new Device(address, sampleIntervalMs, model);
+        devices.put(address, device);
+        loop.postDelayed(device.sampleCallback, sampleIntervalMs);
+        return device;
+    }
+
+    @Override
+    public boolean startScan(final ScanListener listener) {
+        scans++;
+        scanListener = listener;
+        for (final Device device : devices.values()) {
+            loop.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (scanListener == listener) {
+                        listener.onDeviceFound(device.address);
+                    }
+                }
+            }, latencyMs);
+        }
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        scanListener = null;
+    }
+
+    @Override
+    public Link connect(final String address, LinkCallback callback) {
+        connects++;
+        final SimulatedLink link = new SimulatedLink(callback);
+        loop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (link.closed) {
+                    return;
+                }
+                Device device = devices.get(address);
+                if (device != null && device.ignoresConnects) {
+                    return;
+                }
+                if (device == null || !device.inRange) {
+                    link.callback.onDisconnected(STATUS_CONNECT_FAILED);
+                    return;
+                }
+                if (device.link != null) {
+                    device.link.lose();
+                }
+                link.device = device;
+                device.link = link;
+                link.connected = true;
+                link.callback.onConnected();
+            }
+        }, latencyMs);
+        return link;
+    }
+
+    private static byte[] encodeFloat(float value) {
+        byte[] bytes = new byte[TempcCodec.FLOAT_SIZE];
+        TempcCodec.encodeFloat(value, bytes, 0);
+        return bytes;
+    }
+
+    final class Device {
+        final String address;
+        final long sampleIntervalMs;
+        final CrockpotModel model;
+        float desiredTemperature = 45;
+        float reportedTemperature = -274;
+        TempcConfig config = TempcConfig.sketchDefaults();
+        long historyIntervalMs = 30_000;
+        long historySeq;
+        /**
+         * Switches the relay and reports telemetry when set, otherwise the relay is on below the setpoint.
+         */
+        PidController pid;
+        int telemetrySent;
+        boolean relayOn, inRange = true;
+        /**
+         * Time the sketch's loop takes to answer a history, config or program write; a read
+         * before that returns the written value, as on the BLERead|BLEWrite characteristics.
+         */
+        long answerDelayMs;
+        /**
+         * Ignores config writes, as a sketch that can't apply them.
+         */
+        boolean rejectsConfig;
+        /**
+         * Connection attempts never call back, as when the stack can't start them.
+         */
+        boolean ignoresConnects;
+        int samples, notificationsSent, setpointWrites, configWrites, programWrites;
+        CookProgram program = CookProgram.NONE;
+        int programState = ProgramStatus.IDLE, programStep;
+        boolean programWaiting;
+        long programStepElapsedSeconds;
+        private long reportedAt = Long.MIN_VALUE;
+        private long historyRecordedAt, pidTickedAt, programTickedAt;
+        private final byte[] telemetry = new byte[PidTelemetry.SIZE];
+        private final float[] historyTemperatures = new float[HISTORY_CAPACITY];
+        private final float[] historyDesiredTemperatures = new float[HISTORY_CAPACITY];
+        private SimulatedLink link;
+        private byte[] writtenConfig, writtenProgram;
+
+        private final Runnable sampleCallback = new Runnable() {
+            @Override
+            public void run() {
+                sample();
+                loop.postDelayed(this, sampleIntervalMs);
+            }
+        };
+
+        private Device(String address, long sampleIntervalMs, CrockpotModel model) {
+            this.address = address;
+            this.sampleIntervalMs = sampleIntervalMs;
+            this.model = model;
+            historyRecordedAt = loop.elapsedRealtime();
+            pidTickedAt = loop.elapsedRealtime();
+            programTickedAt = loop.elapsedRealtime();
+            new PidTelemetry(0, 0, PidController.PWM_TICKS_COUNT, 0, 0, 0, 0).encode(telemetry);
+        }
+
+        boolean isConnected() {
+            return link != null;
+        }
+
+        void dropConnection() {
+            if (link != null) {
+                link.lose();
+            }
+        }
+
+        /**
+         * A device out of range drops its connection and fails connection attempts, but goes on recording its history.
+         */
+        void setInRange(boolean inRange) {
+            this.inRange = inRange;
+            if (!inRange) {
+                dropConnection();
+            }
+        }
+
+        private void pidTick() {
+            int controlTicks = pid.controlTicks();
+            pid.setDesiredTemperature(desiredTemperature);
+            relayOn = pid.freqTick(model.sensorTemperature());
+            if (pid.controlTicks() != controlTicks) {
+                new PidTelemetry(pid.controlTicks() & 0xffff, pid.decidedHeatQuants(), PidController.PWM_TICKS_COUNT,
+                        pid.kp * pid.errorP(), pid.ki * pid.errorI(), pid.kd * pid.errorD(), pid.control()).encode(telemetry);
+                if (link != null && link.notifyingTelemetry) {
+                    telemetrySent++;
+                    link.notifyValue(TempcProfile.TELEMETRY_CHARACTERISTIC_UUID, telemetry.clone());
+                }
+            }
+        }
+
+        ProgramStatus programStatus() {
+            return new ProgramStatus(programState, programStep, programWaiting, programStepElapsedSeconds, desiredTemperature);
+        }
+
+        /**
+         * Mirrors startProgramStep() of the sketch: the program finishes after the last step, keeping its setpoint.
+         */
+        private void startProgramStep(int index) {
+            if (index >= program.steps.size()) {
+                programState = ProgramStatus.FINISHED;
+            } else {
+                CookProgram.Step step = program.steps.get(index);
+                programState = ProgramStatus.RUNNING;
+                programStep = index;
+                programWaiting = step.waitForSetpoint;
+                programStepElapsedSeconds = 0;
+                desiredTemperature = step.setpoint;
+            }
+            notifyProgramStatus();
+        }
+
+        private void programTick() {
+            if (programState != ProgramStatus.RUNNING) {
+                return;
+            }
+            if (programWaiting) {
+                if (Math.abs(desiredTemperature - model.sensorTemperature()) > CookProgram.SETPOINT_BAND) {
+                    return;
+                }
+                programWaiting = false;
+            } else {
+                programStepElapsedSeconds += config.controlPeriodSeconds;
+            }
+            if (programStepElapsedSeconds >= program.steps.get(programStep).durationMinutes * 60L) {
+                startProgramStep(programStep + 1);
+            } else {
+                notifyProgramStatus();
+            }
+        }
+
+        private void notifyProgramStatus() {
+            if (link != null && link.notifyingProgramStatus) {
+                byte[] value = new byte[ProgramStatus.SIZE];
+                programStatus().encode(value);
+                link.notifyValue(TempcProfile.PROGRAM_STATUS_CHARACTERISTIC_UUID, value);
+            }
+        }
+
+        private void answer(Runnable answer) {
+            if (answerDelayMs > 0) {
+                loop.postDelayed(answer, answerDelayMs);
+            } else {
+                answer.run();
+            }
+        }
+
+        private byte[] historyBatch(long fromSeq, int maxCount) {
+            long firstSeq = Math.min(Math.max(fromSeq, historySeq - HISTORY_CAPACITY), historySeq);
+            int count = (int) Math.min(maxCount, historySeq - firstSeq);
+            byte[] value = new byte[HistoryBatch.HEADER_SIZE + count * HistoryBatch.SAMPLE_SIZE];
+            HistoryBatch.encodeHeader(firstSeq, historySeq, (int) (historyIntervalMs / 1000),
+                    (int) ((loop.elapsedRealtime() - historyRecordedAt) / 1000), value);
+            for (int i = 0; i < count; i++) {
+                int slot = (int) ((firstSeq + i) % HISTORY_CAPACITY);
+                HistoryBatch.encodeSample(i, historyTemperatures[slot], historyDesiredTemperatures[slot], value);
+            }
+            return value;
+        }
+
+        private void sample() {
+            model.step(sampleIntervalMs / 1000.0, relayOn);
+            while (loop.elapsedRealtime() - programTickedAt >= config.controlPeriodSeconds * 1000L) {
+                programTickedAt += config.controlPeriodSeconds * 1000L;
+                programTick();
+            }
+            if (pid == null) {
+                relayOn = model.sensorTemperature() < desiredTemperature;
+            } else {
+                while (loop.elapsedRealtime() - pidTickedAt >= PidController.TICK_MS) {
+                    pidTickedAt += PidController.TICK_MS;
+                    pidTick();
+                }
+            }
+            samples++;
+            float temperature = model.sensorTemperature();
+            if (loop.elapsedRealtime() - historyRecordedAt >= historyIntervalMs) {
+                historyRecordedAt = loop.elapsedRealtime();
+                historyTemperatures[(int) (historySeq % HISTORY_CAPACITY)] = temperature;
+                historyDesiredTemperatures[(int) (historySeq % HISTORY_CAPACITY)] = desiredTemperature;
+                historySeq++;
+            }
+            if (temperature != reportedTemperature && (reportedAt == Long.MIN_VALUE || loop.elapsedRealtime() - reportedAt >= config.notifyIntervalMs)) {
+                reportedTemperature = temperature;
+                reportedAt = loop.elapsedRealtime();
+                if (link != null && link.notifying) {
+                    notificationsSent++;
+                    link.notifyState(temperature);
+                }
+            }
+            if (link != null && random.nextDouble() < linkLossRate) {
+                link.lose();
+            }
+        }
+    }
+
+    private final class SimulatedLink implements Link {
+        private final LinkCallback callback;
+        private Device device;
+        private boolean connected, closed, notifying, notifyingTelemetry, notifyingProgramStatus;
+        private int mtu = HistoryBatch.DEFAULT_MTU;
+        private byte[] historyBatch;
+
+        SimulatedLink(LinkCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            if (!connected) {
+                return false;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onServicesDiscovered(true);
+                }
+            }, false);
+            return true;
+        }
+
+        @Override
+        public boolean hasCharacteristic(UUID uuid) {
+            return TempcProfile.STATE_CHARACTERISTIC_UUID.equals(uuid) || TempcProfile.SET_TEMPERATURE_CHARACTERISTIC_UUID.equals(uuid)
+                    || TempcProfile.CONFIG_CHARACTERISTIC_UUID.equals(uuid) || TempcProfile.HISTORY_CHARACTERISTIC_UUID.equals(uuid)
+                    || TempcProfile.TELEMETRY_CHARACTERISTIC_UUID.equals(uuid) || TempcProfile.PROGRAM_CHARACTERISTIC_UUID.equals(uuid)
+                    || TempcProfile.PROGRAM_STATUS_CHARACTERISTIC_UUID.equals(uuid);
+        }
+
+        @Override
+        public boolean supportsNotifications(UUID uuid) {
+            return TempcProfile.STATE_CHARACTERISTIC_UUID.equals(uuid) || TempcProfile.TELEMETRY_CHARACTERISTIC_UUID.equals(uuid)
+                    || TempcProfile.PROGRAM_STATUS_CHARACTERISTIC_UUID.equals(uuid);
+        }
+
+        @Override
+        public boolean read(final UUID uuid) {
+            if (!connected || !hasCharacteristic(uuid)) {
+                return false;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    if (TempcProfile.HISTORY_CHARACTERISTIC_UUID.equals(uuid)) {
+                        callback.onRead(uuid, historyBatch != null, historyBatch);
+                    } else if (TempcProfile.TELEMETRY_CHARACTERISTIC_UUID.equals(uuid)) {
+                        callback.onRead(uuid, true, device.telemetry.clone());
+                    } else if (TempcProfile.PROGRAM_CHARACTERISTIC_UUID.equals(uuid)) {
+                        callback.onRead(uuid, true, device.writtenProgram != null ? device.writtenProgram.clone() : device.program.encode());
+                    } else if (TempcProfile.PROGRAM_STATUS_CHARACTERISTIC_UUID.equals(uuid)) {
+                        byte[] value = new byte[ProgramStatus.SIZE];
+                        device.programStatus().encode(value);
+                        callback.onRead(uuid, true, value);
+                    } else if (TempcProfile.CONFIG_CHARACTERISTIC_UUID.equals(uuid)) {
+                        byte[] value = new byte[TempcConfig.SIZE];
+                        device.config.encode(value);
+                        callback.onRead(uuid, true, device.writtenConfig != null ? device.writtenConfig.clone() : value);
+                    } else {
+                        float value = TempcProfile.STATE_CHARACTERISTIC_UUID.equals(uuid) ? device.reportedTemperature : device.desiredTemperature;
+                        callback.onRead(uuid, true, encodeFloat(value));
+                    }
+                }
+            }, true);
+            return true;
+        }
+
+        @Override
+        public boolean write(final UUID uuid, byte[] value) {
+            if (connected && TempcProfile.HISTORY_CHARACTERISTIC_UUID.equals(uuid) && value != null && value.length == HistoryBatch.REQUEST_SIZE) {
+                final byte[] request = value.clone();
+                final long fromSeq = TempcCodec.decodeUint32(value, 0);
+                final int maxCount = value[4] & 0xff;
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        historyBatch = request;
+                        device.answer(new Runnable() {
+                            @Override
+                            public void run() {
+                                historyBatch = device.historyBatch(fromSeq, Math.min(maxCount, HistoryBatch.samplesPerRead(mtu)));
+                            }
+                        });
+                        callback.onWrite(uuid, true);
+                    }
+                }, true);
+                return true;
+            }
+            if (connected && TempcProfile.CONFIG_CHARACTERISTIC_UUID.equals(uuid) && value != null && value.length == TempcConfig.SIZE) {
+                final byte[] written = value.clone();
+                final TempcConfig requestedConfig = TempcConfig.decode(value);
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.writtenConfig = written;
+                        device.answer(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (requestedConfig != null && requestedConfig.isValid() && !device.rejectsConfig) {
+                                    device.config = requestedConfig;
+                                }
+                                device.writtenConfig = null;
+                            }
+                        });
+                        device.configWrites++;
+                        callback.onWrite(uuid, true);
+                    }
+                }, true);
+                return true;
+            }
+            if (connected && TempcProfile.PROGRAM_CHARACTERISTIC_UUID.equals(uuid) && value != null) {
+                final CookProgram requestedProgram = CookProgram.decode(value);
+                final boolean valid = requestedProgram != null && requestedProgram.isValid()
+                        && value.length == CookProgram.HEADER_SIZE + requestedProgram.steps.size() * CookProgram.STEP_SIZE;
+                final byte[] written = value.clone();
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        device.writtenProgram = written;
+                        device.answer(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (valid) {
+                                    device.program = requestedProgram;
+                                    if (requestedProgram.steps.isEmpty()) {
+                                        device.programState = ProgramStatus.IDLE;
+                                        device.notifyProgramStatus();
+                                    } else {
+                                        device.startProgramStep(0);
+                                    }
+                                }
+                                device.writtenProgram = null;
+                            }
+                        });
+                        device.programWrites++;
+                        callback.onWrite(uuid, true);
+                    }
+                }, true);
+                return true;
+            }
+            if (!connected || !TempcProfile.SET_TEMPERATURE_CHARACTERISTIC_UUID.equals(uuid) || value == null || value.length != TempcCodec.FLOAT_SIZE) {
+                return false;
+            }
+            final float requestedTemperature = TempcCodec.decodeFloat(value, 0);
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    if (requestedTemperature > -50 && requestedTemperature < 150) {
+                        device.desiredTemperature = requestedTemperature;
+                        // a manual setpoint overrides the program
+                        if (device.programState == ProgramStatus.RUNNING) {
+                            device.programState = ProgramStatus.IDLE;
+                            device.notifyProgramStatus();
+                        }
+                    }
+                    device.setpointWrites++;
+                    callback.onWrite(uuid, true);
+                }
+            }, true);
+            return true;
+        }
+
+        @Override
+        public boolean enableNotifications(final UUID uuid) {
+            if (!connected || !supportsNotifications(uuid)) {
+                return false;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    if (TempcProfile.TELEMETRY_CHARACTERISTIC_UUID.equals(uuid)) {
+                        notifyingTelemetry = true;
+                    } else if (TempcProfile.PROGRAM_STATUS_CHARACTERISTIC_UUID.equals(uuid)) {
+                        notifyingProgramStatus = true;
+                    } else {
+                        notifying = true;
+                    }
+                    callback.onNotificationsEnabled(uuid, true);
+                }
+            }, true);
+            return true;
+        }
+
+        @Override
+        public void disableNotifications(UUID uuid) {
+            if (TempcProfile.TELEMETRY_CHARACTERISTIC_UUID.equals(uuid)) {
+                notifyingTelemetry = false;
+            } else if (TempcProfile.PROGRAM_STATUS_CHARACTERISTIC_UUID.equals(uuid)) {
+                notifyingProgramStatus = false;
+            } else {
+                notifying = false;
+            }
+        }
+
+        @Override
+        public boolean requestMtu(final int requestedMtu) {
+            if (!connected) {
+                return false;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mtu = Math.min(requestedMtu, HistoryBatch.MAX_MTU);
+                    callback.onMtuChanged(mtu, true);
+                }
+            }, true);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            connected = false;
+            notifying = false;
+            notifyingTelemetry = false;
+            notifyingProgramStatus = false;
+            if (device != null && device.link == this) {
+                device.link = null;
+            }
+        }
+
+        private void notifyState(float temperature) {
+            notifyValue(TempcProfile.STATE_CHARACTERISTIC_UUID, encodeFloat(temperature));
+        }
+
+        private void notifyValue(final UUID uuid, final byte[] value) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onNotification(uuid, value);
+                }
+            }, false);
+        }
+
+        private void lose() {
+            connected = false;
+            notifying = false;
+            notifyingTelemetry = false;
+            notifyingProgramStatus = false;
+            if (device.link == this) {
+                device.link = null;
+            }
+            loop.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed) {
+                        callback.onDisconnected(STATUS_LINK_LOST);
+                    }
+                }
+            }, latencyMs);
+        }
+
+        private void deliver(final Runnable callbackInvocation, boolean canDrop) {
+            if (canDrop && random.nextDouble() < dropoutRate) {
+                return;
+            }
+            loop.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (connected) {
+                        callbackInvocation.run();
+                    }
+                }
+            }, latencyMs);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StatePublisherTest {
+    @Test
+    public void deliversOnlyNewestPendingStatePerDevice() throws Exception {
+        VirtualEventLoop ui = new VirtualEventLoop(0);
+        final List<ArduinoState> delivered = new ArrayList<>();
+        StatePublisher publisher = new StatePublisher(ui, new ConnectionManager.Listener() {
+            @Override
+            public void onState(ArduinoState state) {
+                delivered.add(state);
+            }
+        }, new Metrics());
+        publisher.onState(new ArduinoState("Scanning"));
+        for (int i = 0; i < 100; i++) {
+            publisher.onState(new ArduinoState("a", i, 50, null, null));
+            publisher.onState(new ArduinoState("b", -i, 50, null, null));
+        }
+        ui.runFor(0);
+        assertEquals(3, delivered.size());
+        for (ArduinoState state : delivered) {
+            if (state.address == null) {
+                assertEquals("Scanning", state.message);
+            } else {
+                assertEquals("a".equals(state.address) ? 99 : -99, state.temperature, 0);
+            }
+        }
+        publisher.onState(new ArduinoState("a", 100, 50, null, null));
+        ui.runFor(0);
+        assertEquals(4, delivered.size());
+        assertEquals(100, delivered.get(3).temperature, 0);
+    }
+}
@@ -0,0 +1,83 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StateSnapshotTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("tempc", ".snap");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        TimeSeries series = new TimeSeries(DeviceHistory.DEFAULT_CAPACITY);
+        for (int i = 0; i < DeviceHistory.DEFAULT_CAPACITY + 100; i++) {
+            series.append(1000 + i * 750L, 20 + i / 16f);
+        }
+        TempcConfig config = new TempcConfig(11, 45, 500, 2000, 0.9f, 1 / 120f, 6.5f);
+        CookProgram program = CookProgram.parse("ramp to 60 C, hold 2 h");
+        long elapsedToWallClock = 1_500_000_000_000L;
+        StateSnapshot.write(file, series.snapshot(), elapsedToWallClock, 42.5f, 60, config, program);
+
+        StateSnapshot snapshot = StateSnapshot.read(file);
+        assertEquals(series.snapshot().lastTime() + elapsedToWallClock, snapshot.time);
+        assertEquals(42.5f, snapshot.temperature, 0);
+        assertEquals(60, snapshot.desiredTemperature, 0);
+        assertEquals(config, snapshot.config);
+        assertEquals(program, snapshot.program);
+        // restored after a reboot, elapsed realtime starts over
+        ArduinoState state = snapshot.toState("address", 5000 - snapshot.time);
+        TimeSeries.Snapshot history = state.history;
+        assertEquals(DeviceHistory.DEFAULT_CAPACITY, history.size());
+        assertEquals(5000, history.lastTime());
+        assertEquals(5000 - (DeviceHistory.DEFAULT_CAPACITY - 1) * 750L, history.time(history.start()));
+        assertEquals(series.snapshot().value(series.snapshot().start()), history.value(history.start()), 0);
+        assertEquals(program, state.program);
+    }
+
+    @Test
+    public void ignoresMissingAndDamagedFiles() throws Exception {
+        file.delete();
+        assertNull(StateSnapshot.read(file));
+        TimeSeries series = new TimeSeries(16);
+        series.append(0, 20);
+        series.append(1000, 21);
+        StateSnapshot.write(file, series.snapshot(), 0, 21, 45, null, null);
+        StateSnapshot snapshot = StateSnapshot.read(file);
+        assertNull(snapshot.config);
+        assertNull(snapshot.program);
+        assertEquals(2, snapshot.times.length);
+        truncate(file.length() - 1);
+        assertNull(StateSnapshot.read(file));
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+        assertNull(StateSnapshot.read(file));
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
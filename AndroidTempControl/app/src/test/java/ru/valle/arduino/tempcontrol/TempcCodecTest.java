@@ -0,0 +1,72 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TempcCodecTest {
+    @Test
+    public void matchesLittleEndianByteBuffer() throws Exception {
+        float[] values = {0, -0f, 45, -273.15f, 63.4375f, Float.MIN_VALUE, Float.MAX_VALUE, Float.NaN, Float.NEGATIVE_INFINITY};
+        byte[] encoded = new byte[TempcCodec.FLOAT_SIZE + 1];
+        for (float value : values) {
+            byte[] expected = ByteBuffer.allocate(TempcCodec.FLOAT_SIZE).order(ByteOrder.LITTLE_ENDIAN).putFloat(value).array();
+            TempcCodec.encodeFloat(value, encoded, 1);
+            assertArrayEquals(expected, Arrays.copyOfRange(encoded, 1, encoded.length));
+            assertEquals(Float.floatToRawIntBits(value), Float.floatToRawIntBits(TempcCodec.decodeFloat(encoded, 1)));
+        }
+    }
+
+    @Test
+    public void configRoundTrip() throws Exception {
+        TempcConfig config = new TempcConfig(11, 45, 500, 2000, 0.9f, 1 / 120f, 6.5f);
+        byte[] value = new byte[TempcConfig.SIZE];
+        config.encode(value);
+        assertEquals(config, TempcConfig.decode(value));
+        assertEquals(375, config.conversionTimeMs());
+        value[0] = TempcConfig.VERSION + 1;
+        assertNull(TempcConfig.decode(value));
+    }
+
+    @Test
+    public void historyBatchRoundTrip() throws Exception {
+        assertEquals(2, HistoryBatch.samplesPerRead(HistoryBatch.DEFAULT_MTU));
+        assertEquals(58, HistoryBatch.samplesPerRead(HistoryBatch.MAX_MTU));
+        byte[] value = new byte[HistoryBatch.HEADER_SIZE + 2 * HistoryBatch.SAMPLE_SIZE];
+        HistoryBatch.encodeHeader(0xfffffff0L, 0xfffffff5L, 30, 7, value);
+        HistoryBatch.encodeSample(0, 63.4375f, 45, value);
+        HistoryBatch.encodeSample(1, -10.5f, 45, value);
+        HistoryBatch batch = new HistoryBatch();
+        assertTrue(batch.decode(value));
+        assertEquals(0xfffffff0L, batch.firstSeq);
+        assertEquals(2, batch.count);
+        assertEquals(63.4375f, batch.temperature(0), 0);
+        assertEquals(-10.5f, batch.temperature(1), 0);
+        assertEquals(45, batch.desiredTemperature(1), 0);
+        // the newest sample, 0xfffffff4, was recorded 7 s before the read
+        assertEquals(1_000_000 - 7000 - 3 * 30_000, batch.time(1, 1_000_000));
+        assertFalse(batch.decode(Arrays.copyOf(value, value.length - 1)));
+    }
+
+    @Test
+    public void programStatusRoundTrip() throws Exception {
+        ProgramStatus status = new ProgramStatus(ProgramStatus.RUNNING, 1, true, 0xfffffff0L, -10.5f);
+        byte[] statusValue = new byte[ProgramStatus.SIZE];
+        status.encode(statusValue);
+        ProgramStatus decoded = ProgramStatus.decode(statusValue);
+        assertEquals(ProgramStatus.RUNNING, decoded.state);
+        assertEquals(1, decoded.step);
+        assertTrue(decoded.waiting);
+        assertEquals(0xfffffff0L, decoded.stepElapsedSeconds);
+        assertEquals(-10.5f, decoded.setpoint, 0);
+        assertNull(ProgramStatus.decode(Arrays.copyOf(statusValue, ProgramStatus.SIZE - 1)));
+    }
+}
@@ -0,0 +1,95 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TemperatureLogTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("templog", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void readsRecentRecordsAcrossSegments() throws Exception {
+        TemperatureLog log = new TemperatureLog(dir);
+        for (int i = 0; i < 100; i++) {
+            log.append(1_000_000L + i * 1000, i, 50);
+        }
+        log.close();
+        log = new TemperatureLog(dir);
+        for (int i = 100; i < 150; i++) {
+            log.append(1_000_000L + i * 1000, i, 60);
+        }
+        final List<Float> temperatures = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        int count = log.readRecent(70, new TemperatureLog.RecordConsumer() {
+            @Override
+            public void onRecord(long time, float temperature, float desiredTemperature) {
+                times.add(time);
+                temperatures.add(temperature);
+                assertEquals(temperature < 100 ? 50 : 60, desiredTemperature, 0);
+            }
+        });
+        log.close();
+        assertEquals(70, count);
+        assertEquals(70, temperatures.size());
+        for (int i = 0; i < 70; i++) {
+            assertEquals(80 + i, temperatures.get(i), 0);
+            assertEquals(1_000_000L + (80 + i) * 1000, (long) times.get(i));
+        }
+    }
+
+    @Test
+    public void keepsOrderOfWritingWhenTheClockGoesBack() throws Exception {
+        TemperatureLog log = new TemperatureLog(dir);
+        log.append(2_000_000L, 1, 50);
+        log.append(2_001_000L, 2, 50);
+        // the wall clock is set back by an hour
+        log.append(2_001_000L - 3600_000L, 3, 50);
+        log.close();
+        log = new TemperatureLog(dir);
+        log.append(2_002_000L - 3600_000L, 4, 50);
+        final List<Float> temperatures = new ArrayList<>();
+        log.readRecent(10, new TemperatureLog.RecordConsumer() {
+            @Override
+            public void onRecord(long time, float temperature, float desiredTemperature) {
+                temperatures.add(temperature);
+            }
+        });
+        TemperatureLog.Reader reader = log.reader();
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, temperatures.get(i - 1), 0);
+            assertTrue(reader.next());
+            assertEquals(i, reader.temperature(), 0);
+        }
+        assertFalse(reader.next());
+        reader.close();
+        log.close();
+    }
+}
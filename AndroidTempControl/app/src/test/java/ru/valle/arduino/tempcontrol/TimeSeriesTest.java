@@ -0,0 +1,39 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSeriesTest {
+    @Test
+    public void snapshotKeepsLastCapacitySamples() throws Exception {
+        TimeSeries series = new TimeSeries(4);
+        for (int i = 0; i < 10; i++) {
+            series.append(i * 1000, i);
+        }
+        TimeSeries.Snapshot snapshot = series.snapshot();
+        assertEquals(4, snapshot.size());
+        assertEquals(6, snapshot.start());
+        assertEquals(10, snapshot.end());
+        for (long i = snapshot.start(); i < snapshot.end(); i++) {
+            assertEquals(i * 1000, snapshot.time(i));
+            assertEquals(i, snapshot.value(i), 0);
+        }
+        assertEquals(9f, snapshot.lastValue(), 0);
+    }
+
+    @Test
+    public void snapshotReportsOverwrittenSamples() throws Exception {
+        TimeSeries series = new TimeSeries(4);
+        series.append(0, 0);
+        series.append(1, 1);
+        TimeSeries.Snapshot snapshot = series.snapshot();
+        assertEquals(0, snapshot.firstIntact());
+        series.append(2, 2);
+        series.append(3, 3);
+        series.append(4, 4);
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.firstIntact() > snapshot.start());
+    }
+}
@@ -0,0 +1,80 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Event loop with virtual time for running the connection logic against
+ * {@link SimulatedTempcTransport} on a plain JVM: time advances only in {@link #runFor(long)}.
+ */
+final class VirtualEventLoop implements EventLoop {
+    private static final class Task implements Comparable<Task> {
+        final long time, sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private final long wallClockBase;
+    private long now, sequence;
+
+    VirtualEventLoop(long wallClockBase) {
+        this.wallClockBase = wallClockBase;
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        postDelayed(runnable, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs) {
+        tasks.add(new Task(now + Math.max(0, delayMs), sequence++, runnable));
+    }
+
+    @Override
+    public void remove(Runnable runnable) {
+        for (Iterator<Task> it = tasks.iterator(); it.hasNext(); ) {
+            if (it.next().runnable == runnable) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return wallClockBase + now;
+    }
+
+    /**
+     * Runs every task due within the next durationMs of virtual time, including the ones
+     * they post, and leaves the clock at the end of the interval.
+     */
+    void runFor(long durationMs) {
+        long end = now + durationMs;
+        while (!tasks.isEmpty() && tasks.peek().time <= end) {
+            Task task = tasks.poll();
+            now = task.time;
+            task.runnable.run();
+        }
+        now = end;
+    }
+}
@@ -0,0 +1,24 @@
+package ru.valle.arduino.tempcontrol;
+
+/**
+ * Synthetic crockpot readings: a slow bang-bang oscillation around 60 C with probe noise.
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    static float temperature(long time) {
+        double phase = (time % 1_200_000) / 1_200_000.0;
+        double noise = ((time * 2654435761L) >>> 20 & 0xf) / 64.0;
+        return Math.round((60 + Math.sin(phase * 2 * Math.PI) + noise) * 16) / 16f;
+    }
+
+    static void fill(TimeSeries series, Downsampler downsampler, int count, long interval) {
+        for (int i = 1; i <= count; i++) {
+            long time = i * interval;
+            float temperature = temperature(time);
+            series.append(time, temperature);
+            downsampler.add(time, temperature);
+        }
+    }
+}
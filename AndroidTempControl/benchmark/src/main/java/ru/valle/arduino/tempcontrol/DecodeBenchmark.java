@@ -0,0 +1,59 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Characteristic value conversions for every read, notification and setpoint write:
+ * {@link TempcCodec} against the ByteBuffer code it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    private byte[] value;
+    private final byte[] out = new byte[TempcCodec.FLOAT_SIZE];
+    private float temperature;
+
+    @Setup
+    public void setUp() {
+        temperature = 63.4375f;
+        value = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(temperature).array();
+    }
+
+    @Benchmark
+    public float decodeCodec() {
+        return TempcCodec.decodeFloat(value, 0);
+    }
+
+    @Benchmark
+    public byte[] encodeCodec() {
+        TempcCodec.encodeFloat(temperature, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public float decodeByteBuffer() {
+        return ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+    }
+
+    @Benchmark
+    public byte[] encodeByteBuffer() {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(temperature).array();
+    }
+}
@@ -0,0 +1,82 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing graph points: a full rebuild, as when the activity shows a device for the first
+ * time, and the incremental update after one more sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphFeedBenchmark {
+    private static final long MAX_TIMESPAN = TimeUnit.HOURS.toMillis(24);
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    @Param({"400", "4096", "65536", "1000000"})
+    int historySize;
+
+    private TimeSeries series;
+    private Downsampler downsampler;
+    private GraphFeed feed;
+    private long time;
+    private float checksum;
+
+    private final GraphFeed.Sink sink = new GraphFeed.Sink() {
+        @Override
+        public void resetPoints(float[] xs, float[] ys, int offset, int count) {
+            checksum += count > 0 ? xs[offset + count - 1] + ys[offset] : 0;
+        }
+
+        @Override
+        public void appendPoint(float x, float y, int maxPoints) {
+            checksum += x + y;
+        }
+
+        @Override
+        public void setViewport(float minX, float maxX) {
+            checksum += maxX - minX;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        series = new TimeSeries(historySize);
+        downsampler = new Downsampler(Downsampler.DEFAULT_BUCKET_WIDTHS, Downsampler.DEFAULT_BUCKETS_PER_LEVEL);
+        BenchmarkData.fill(series, downsampler, historySize, SAMPLE_INTERVAL_MS);
+        time = historySize * SAMPLE_INTERVAL_MS;
+        feed = new GraphFeed(MAX_TIMESPAN, sink);
+        feed.update(series.snapshot(), downsampler);
+    }
+
+    @Benchmark
+    public float rebuild() {
+        new GraphFeed(MAX_TIMESPAN, sink).update(series.snapshot(), downsampler);
+        return checksum;
+    }
+
+    @Benchmark
+    public float appendSample() {
+        time += SAMPLE_INTERVAL_MS;
+        float temperature = BenchmarkData.temperature(time);
+        series.append(time, temperature);
+        downsampler.add(time, temperature);
+        feed.update(series.snapshot(), downsampler);
+        return checksum;
+    }
+}
@@ -0,0 +1,74 @@
+package ru.valle.arduino.tempcontrol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one received sample in ArduinoStateListener.onTemperatureRead: the ring buffer,
+ * the downsampler, the log and the snapshot handed to the UI.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestionBenchmark {
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    @Param({"400", "4096", "65536", "1000000"})
+    int historySize;
+
+    private File dir;
+    private DeviceHistory history;
+    private long time;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = File.createTempFile("tempc", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        history = new DeviceHistory(dir, historySize);
+        for (int i = 0; i < historySize; i++) {
+            addSample();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        history.close();
+        delete(dir);
+    }
+
+    @Benchmark
+    public TimeSeries.Snapshot addSample() throws IOException {
+        time += SAMPLE_INTERVAL_MS;
+        history.add(time, time, BenchmarkData.temperature(time), 60);
+        return history.snapshot();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
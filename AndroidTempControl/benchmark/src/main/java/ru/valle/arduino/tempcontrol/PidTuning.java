@@ -0,0 +1,37 @@
+package ru.valle.arduino.tempcontrol;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline tuning of the sketch's PID gains: sweeps a grid of gains over the crockpot model
+ * and prints the best sets.
+ * <p>
+ * ./gradlew :benchmark:tunePid -PtuneArgs="60 10"  (setpoint C, simulated hours per run)
+ */
+public final class PidTuning {
+    private static final int GRID_SIZE = 16;
+    private static final int SHOWN_RESULTS = 10;
+
+    private PidTuning() {
+    }
+
+    public static void main(String[] args) {
+        float setpoint = args.length > 0 ? Float.parseFloat(args[0]) : 60;
+        long duration = TimeUnit.HOURS.toMillis(args.length > 1 ? Long.parseLong(args[1]) : 10);
+        PidSimulation simulation = new PidSimulation(CrockpotModel.crockpot(), setpoint, duration, 0.5f);
+        PidController defaults = PidController.sketchDefaults();
+        System.out.println("sketch defaults " + simulation.run(defaults.kp, defaults.ki, defaults.kd));
+
+        long start = System.nanoTime();
+        List<PidSimulation.Result> results = GainSweep.run(new ForkJoinPool(), simulation,
+                GainSweep.range(0.1f, 3, GRID_SIZE), GainSweep.range(0, 0.02f, GRID_SIZE), GainSweep.range(0, 40, GRID_SIZE));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d runs, %.1f simulated years in %.1f s", results.size(),
+                results.size() * (double) duration / TimeUnit.DAYS.toMillis(365), seconds));
+        for (int i = 0; i < Math.min(SHOWN_RESULTS, results.size()); i++) {
+            System.out.println(results.get(i));
+        }
+    }
+}
@@ -6,18 +6,104 @@
 #define ONE_WIRE_BUS 2
 #define RELAY_PIN 4
 #define PWM_TICKS_COUNT 5
+#define CONFIG_VERSION 1
+#define HISTORY_CAPACITY 1024 // 8.5 hours at 30 s
+#define HISTORY_INTERVAL_S 30
+#define HISTORY_HEADER_SIZE 12
+#define HISTORY_BATCH_SIZE (HISTORY_HEADER_SIZE + 58 * sizeof(Sample)) // one read at an ATT MTU of 247
+#define PROGRAM_VERSION 1
+#define PROGRAM_MAX_STEPS 16
+#define PROGRAM_HEADER_SIZE 2
+#define PROGRAM_STEP_WAIT_FOR_SETPOINT 1
+#define PROGRAM_IDLE 0
+#define PROGRAM_RUNNING 1
+#define PROGRAM_FINISHED 2
+#define PROGRAM_STATUS_WAITING 1
+#define SETPOINT_BAND 0.5
 
+// little-endian layout of the config characteristic, TempcConfig on the Android side
+struct __attribute__((packed)) Config {
+  uint8_t version;
+  uint8_t resolution; // DS18B20 bits, 9..12
+  uint16_t controlPeriodS; // 5..600
+  uint16_t sampleIntervalMs; // 0 to sample as fast as the sensor converts
+  uint16_t notifyIntervalMs; // minimal interval between state notifications
+  float kp;
+  float ki;
+  float kd;
+};
+
+// last control tick, PidTelemetry on the Android side; 20 bytes to fit a notification at the default MTU
+struct __attribute__((packed)) Telemetry {
+  uint16_t tick; // 0 until the first control tick
+  uint8_t heatQuants;
+  uint8_t pwmTicks;
+  float proportionalTerm;
+  float integralTerm;
+  float derivativeTerm;
+  float control;
+};
+
+// history sample, 1/16 C as the DS18B20 reports it
+struct __attribute__((packed)) Sample {
+  int16_t temperature;
+  int16_t desiredTemperature;
+};
+
+// cook program step, CookProgram.Step on the Android side
+struct __attribute__((packed)) ProgramStep {
+  int16_t setpoint; // 1/16 C
+  uint16_t durationMinutes;
+  uint8_t flags; // PROGRAM_STEP_WAIT_FOR_SETPOINT to start the duration once the setpoint is reached
+  uint8_t reserved;
+};
+
+// value of the program characteristic, written at once, count 0 stops the running program
+struct __attribute__((packed)) Program {
+  uint8_t version;
+  uint8_t count;
+  ProgramStep steps[PROGRAM_MAX_STEPS];
+};
+
+// progress of the program, ProgramStatus on the Android side
+struct __attribute__((packed)) ProgramStatus {
+  uint8_t state;
+  uint8_t step;
+  uint8_t flags; // PROGRAM_STATUS_WAITING
+  uint8_t reserved;
+  uint32_t stepElapsedS;
+  float setpoint;
+};
 
 OneWire ourWire(ONE_WIRE_BUS);
 DallasTemperature sensors(&ourWire);
 BLEService bleService("19B10010-E8F2-537E-4F6C-D104768A1214");
 BLEFloatCharacteristic stateCharacteristic("19B10011-E8F2-537E-4F6C-D104768A1214", BLERead | BLENotify);
 BLEFloatCharacteristic temperatureCharacteristic("19B10012-E8F2-537E-4F6C-D104768A1214", BLERead | BLEWrite);
+BLECharacteristic configCharacteristic("19B10013-E8F2-537E-4F6C-D104768A1214", BLERead | BLEWrite, sizeof(Config));
+BLECharacteristic telemetryCharacteristic("19B10014-E8F2-537E-4F6C-D104768A1214", BLERead | BLENotify, sizeof(Telemetry));
+// write uint32 first wanted sequence number and uint8 max count, then read the batch, HistoryBatch on the Android side
+BLECharacteristic historyCharacteristic("19B10015-E8F2-537E-4F6C-D104768A1214", BLERead | BLEWrite, HISTORY_BATCH_SIZE);
+BLECharacteristic programCharacteristic("19B10016-E8F2-537E-4F6C-D104768A1214", BLERead | BLEWrite, sizeof(Program));
+BLECharacteristic programStatusCharacteristic("19B10017-E8F2-537E-4F6C-D104768A1214", BLERead | BLENotify, sizeof(ProgramStatus));
+Config config;
+volatile Telemetry telemetry; // written by the timer interrupt
+volatile bool telemetryPending;
+Program program; // run by the timer interrupt
+volatile ProgramStatus programStatus;
+volatile bool programStatusPending;
+Sample history[HISTORY_CAPACITY];
+uint32_t historyNextSeq;
+unsigned long historyRecordedAt;
+uint8_t historyBatch[HISTORY_BATCH_SIZE];
+unsigned long conversionRequestedAt;
+unsigned long notifiedAt;
+bool conversionPending;
 bool relayOn;
 float temperature;
 float prevErrorP = -1000;
 float prevErrorD = 0;
-float desiredTemperature = 45;
+volatile float desiredTemperature = 45; // the program changes it in the timer interrupt
 float T = 150.0;
 float KP = 0.7;
 float KI = 1.0 / T;
@@ -42,7 +128,42 @@ void freqTick() {
   }
 }
 
+void startProgramStep(uint8_t index) {
+  if (index >= program.count) {
+    programStatus.state = PROGRAM_FINISHED; // the last setpoint stays
+  } else {
+    const ProgramStep &step = program.steps[index];
+    programStatus.state = PROGRAM_RUNNING;
+    programStatus.step = index;
+    programStatus.flags = step.flags & PROGRAM_STEP_WAIT_FOR_SETPOINT ? PROGRAM_STATUS_WAITING : 0;
+    programStatus.stepElapsedS = 0;
+    desiredTemperature = step.setpoint / 16.0;
+    programStatus.setpoint = desiredTemperature;
+  }
+  programStatusPending = true;
+}
+
+void programTick() {
+  if (programStatus.state != PROGRAM_RUNNING) {
+    return;
+  }
+  if (programStatus.flags & PROGRAM_STATUS_WAITING) {
+    if (abs(desiredTemperature - temperature) > SETPOINT_BAND) {
+      return;
+    }
+    programStatus.flags &= ~PROGRAM_STATUS_WAITING;
+  } else {
+    programStatus.stepElapsedS += config.controlPeriodS;
+  }
+  if (programStatus.stepElapsedS >= program.steps[programStatus.step].durationMinutes * 60UL) {
+    startProgramStep(programStatus.step + 1);
+  } else {
+    programStatusPending = true;
+  }
+}
+
 void controlTick() {
+  programTick();
   errorP = desiredTemperature - temperature;
   if (abs(errorP) < 2) {
     if (abs(KI * (errorI + errorP)) < 1.1) {
@@ -57,30 +178,60 @@ void controlTick() {
   control = KP * errorP + KI * errorI + KD * errorD;
   heatQuants = min(PWM_TICKS_COUNT, max(0, PWM_TICKS_COUNT * control));
 
+  // runs in the timer interrupt: hand the values over to loop(), Serial would block here
+  telemetry.tick = telemetry.tick == 0xffff ? 1 : telemetry.tick + 1;
+  telemetry.heatQuants = heatQuants;
+  telemetry.proportionalTerm = KP * errorP;
+  telemetry.integralTerm = KI * errorI;
+  telemetry.derivativeTerm = KD * errorD;
+  telemetry.control = control;
+  telemetryPending = true;
+}
+
+void publishTelemetry() {
+  Telemetry copy;
+  noInterrupts();
+  memcpy(&copy, (const void *) &telemetry, sizeof(Telemetry));
+  telemetryPending = false;
+  interrupts();
+  telemetryCharacteristic.setValue((const unsigned char *) &copy, sizeof(Telemetry));
+
   Serial.print(temperature);
-  Serial.print(", P ");
-  Serial.print(errorP);
   Serial.print(", KP*errorP ");
-  Serial.print(KP * errorP);
-  Serial.print(", I ");
-  Serial.print(errorI);
+  Serial.print(copy.proportionalTerm);
   Serial.print(", KI*errorI ");
-  Serial.print(KI * errorI);
-  Serial.print(", D ");
-  Serial.print(errorD);
+  Serial.print(copy.integralTerm);
   Serial.print(", KD*errorD ");
-  Serial.print(KD * errorD);
+  Serial.print(copy.derivativeTerm);
   Serial.print(", control ");
-  Serial.print(control);
+  Serial.print(copy.control);
   Serial.print(", hq ");
-  Serial.println(heatQuants);
+  Serial.println(copy.heatQuants);
+}
+
+void publishProgramStatus() {
+  ProgramStatus copy;
+  noInterrupts();
+  memcpy(&copy, (const void *) &programStatus, sizeof(ProgramStatus));
+  programStatusPending = false;
+  interrupts();
+  programStatusCharacteristic.setValue((const unsigned char *) &copy, sizeof(ProgramStatus));
 }
 
 void setup() {
   Serial.begin(9600);
   Serial.println("Init temperature sensor");
+  config.version = CONFIG_VERSION;
+  config.resolution = 12;
+  config.controlPeriodS = 30;
+  config.sampleIntervalMs = 0;
+  config.notifyIntervalMs = 0;
+  config.kp = KP;
+  config.ki = KI;
+  config.kd = KD;
   sensors.begin();
-  setPrecisionForAllSensors(12);
+  setPrecisionForAllSensors(config.resolution);
+  sensors.setWaitForConversion(false);
   /*
      9 bit 0.5 degrees C 93.75 mSec
     10 bit  0.25 degrees C  187.5 mSec
@@ -103,12 +254,25 @@ void setup() {
   BLE.setAdvertisedService(bleService);
   bleService.addCharacteristic(stateCharacteristic);
   bleService.addCharacteristic(temperatureCharacteristic);
+  bleService.addCharacteristic(configCharacteristic);
+  bleService.addCharacteristic(telemetryCharacteristic);
+  bleService.addCharacteristic(historyCharacteristic);
+  bleService.addCharacteristic(programCharacteristic);
+  bleService.addCharacteristic(programStatusCharacteristic);
   BLE.addService(bleService);
   stateCharacteristic.setValue(-274);
   temperatureCharacteristic.setValue(desiredTemperature);
+  configCharacteristic.setValue((const unsigned char *) &config, sizeof(Config));
+  telemetry.pwmTicks = PWM_TICKS_COUNT;
+  telemetryCharacteristic.setValue((const unsigned char *) &telemetry, sizeof(Telemetry));
+  fillHistoryBatch(0, 0);
+  program.version = PROGRAM_VERSION;
+  programCharacteristic.setValue((const unsigned char *) &program, PROGRAM_HEADER_SIZE);
+  programStatus.setpoint = desiredTemperature;
+  publishProgramStatus();
   BLE.advertise();
   Serial.println("Bluetooth device active");
-  CurieTimerOne.start(30000000 / PWM_TICKS_COUNT, &freqTick); //once in 30 seconds
+  CurieTimerOne.start(config.controlPeriodS * 1000000 / PWM_TICKS_COUNT, &freqTick);
   Serial.println("Timer started.");
 }
 
@@ -144,19 +308,124 @@ void setPrecisionForAllSensors(byte precision) {
 }
 
 
+bool isValid(const Config &c) {
+  return c.version == CONFIG_VERSION
+         && c.resolution >= 9 && c.resolution <= 12
+         && c.controlPeriodS >= 5 && c.controlPeriodS <= 600
+         && isfinite(c.kp) && isfinite(c.ki) && isfinite(c.kd);
+}
+
+void applyConfig(const Config &requested) {
+  if (requested.resolution != config.resolution) {
+    setPrecisionForAllSensors(requested.resolution);
+    conversionPending = false;
+  }
+  noInterrupts(); // gains are used by the timer interrupt
+  KP = requested.kp;
+  KI = requested.ki;
+  KD = requested.kd;
+  interrupts();
+  if (requested.controlPeriodS != config.controlPeriodS) {
+    CurieTimerOne.restart(requested.controlPeriodS * 1000000UL / PWM_TICKS_COUNT);
+  }
+  config = requested;
+}
+
+bool isValid(const Program &p, int length) {
+  if (length < PROGRAM_HEADER_SIZE || p.version != PROGRAM_VERSION || p.count > PROGRAM_MAX_STEPS
+      || length != PROGRAM_HEADER_SIZE + p.count * sizeof(ProgramStep)) {
+    return false;
+  }
+  for (uint8_t i = 0; i < p.count; i++) {
+    float setpoint = p.steps[i].setpoint / 16.0;
+    if (setpoint <= -50 || setpoint >= 150) {
+      return false;
+    }
+  }
+  return true;
+}
+
+void applyProgram(const Program &requested) {
+  noInterrupts(); // the program runs in the timer interrupt
+  program = requested;
+  if (program.count > 0) {
+    startProgramStep(0);
+  } else {
+    programStatus.state = PROGRAM_IDLE;
+    programStatusPending = true;
+  }
+  interrupts();
+}
+
+void recordHistory(unsigned long now) {
+  Sample &sample = history[historyNextSeq % HISTORY_CAPACITY];
+  sample.temperature = (int16_t) round(temperature * 16);
+  sample.desiredTemperature = (int16_t) round(desiredTemperature * 16);
+  historyNextSeq++;
+  historyRecordedAt = now;
+}
+
+void putUint16(uint8_t *out, uint16_t value) {
+  out[0] = value;
+  out[1] = value >> 8;
+}
+
+void putUint32(uint8_t *out, uint32_t value) {
+  putUint16(out, value);
+  putUint16(out + 2, value >> 16);
+}
+
+void fillHistoryBatch(uint32_t fromSeq, uint8_t maxCount) {
+  uint32_t oldestSeq = historyNextSeq > HISTORY_CAPACITY ? historyNextSeq - HISTORY_CAPACITY : 0;
+  uint32_t firstSeq = min(max(fromSeq, oldestSeq), historyNextSeq);
+  uint32_t count = min((uint32_t) min(maxCount, (HISTORY_BATCH_SIZE - HISTORY_HEADER_SIZE) / sizeof(Sample)), historyNextSeq - firstSeq);
+  putUint32(historyBatch, firstSeq);
+  putUint32(historyBatch + 4, historyNextSeq);
+  putUint16(historyBatch + 8, HISTORY_INTERVAL_S);
+  putUint16(historyBatch + 10, historyNextSeq > 0 ? (millis() - historyRecordedAt) / 1000 : 0);
+  for (uint32_t i = 0; i < count; i++) {
+    const Sample &sample = history[(firstSeq + i) % HISTORY_CAPACITY];
+    uint8_t *out = historyBatch + HISTORY_HEADER_SIZE + i * sizeof(Sample);
+    putUint16(out, sample.temperature);
+    putUint16(out + 2, sample.desiredTemperature);
+  }
+  historyCharacteristic.setValue(historyBatch, HISTORY_HEADER_SIZE + count * sizeof(Sample));
+}
+
 void loop() {
   BLE.poll();
-  sensors.requestTemperatures(); // Send the command to get temperatures
-  temperature = sensors.getTempCByIndex(0);
-
-  if (stateCharacteristic.value() != temperature) {
-    stateCharacteristic.setValue(temperature);
+  unsigned long now = millis();
+  // 750 ms at 12 bits, halved by each bit less
+  unsigned long conversionTime = 750UL >> (12 - config.resolution);
+  if (!conversionPending) {
+    if (now - conversionRequestedAt >= config.sampleIntervalMs) {
+      sensors.requestTemperatures(); // returns at once, the conversion goes on in the sensor
+      conversionRequestedAt = now;
+      conversionPending = true;
+    }
+  } else if (now - conversionRequestedAt >= conversionTime) {
+    conversionPending = false;
+    temperature = sensors.getTempCByIndex(0);
+    if (historyNextSeq == 0 || now - historyRecordedAt >= HISTORY_INTERVAL_S * 1000UL) {
+      recordHistory(now);
+    }
+    if (stateCharacteristic.value() != temperature && now - notifiedAt >= config.notifyIntervalMs) {
+      stateCharacteristic.setValue(temperature);
+      notifiedAt = now;
+    }
   }
 
   if (temperatureCharacteristic.written()) {
     float requestedTemperature = temperatureCharacteristic.value();
     if (requestedTemperature > -50 && requestedTemperature < 150) {
+      noInterrupts();
       desiredTemperature = requestedTemperature;
+      if (programStatus.state == PROGRAM_RUNNING) {
+        // a manual setpoint overrides the program
+        programStatus.state = PROGRAM_IDLE;
+        programStatusPending = true;
+      }
+      interrupts();
       Serial.print("Requested temperature: ");
       Serial.println(requestedTemperature);
     } else {
@@ -167,5 +436,49 @@ void loop() {
   if (temperatureCharacteristic.value() != desiredTemperature) {
     temperatureCharacteristic.setValue(desiredTemperature);
   }
-}
 
+  if (configCharacteristic.written()) {
+    Config requested;
+    if (configCharacteristic.valueLength() == sizeof(Config)) {
+      memcpy(&requested, configCharacteristic.value(), sizeof(Config));
+      if (isValid(requested)) {
+        applyConfig(requested);
+        Serial.println("Config applied");
+      } else {
+        Serial.println("Requested config is invalid");
+      }
+    }
+    // reads back what runs, the requested config is dropped if it was invalid
+    configCharacteristic.setValue((const unsigned char *) &config, sizeof(Config));
+  }
+
+  if (telemetryPending) {
+    publishTelemetry();
+  }
+
+  if (programCharacteristic.written()) {
+    Program requested;
+    int length = programCharacteristic.valueLength();
+    memset(&requested, 0, sizeof(Program));
+    memcpy(&requested, programCharacteristic.value(), min(length, (int) sizeof(Program)));
+    if (isValid(requested, length)) {
+      applyProgram(requested);
+      Serial.print("Program started, steps: ");
+      Serial.println(requested.count);
+    } else {
+      Serial.println("Requested program is invalid");
+    }
+    // reads back what runs
+    programCharacteristic.setValue((const unsigned char *) &program, PROGRAM_HEADER_SIZE + program.count * sizeof(ProgramStep));
+  }
+  if (programStatusPending) {
+    publishProgramStatus();
+  }
+
+  if (historyCharacteristic.written()) {
+    const uint8_t *request = historyCharacteristic.value();
+    if (historyCharacteristic.valueLength() == 5) {
+      fillHistoryBatch(request[0] | (uint32_t) request[1] << 8 | (uint32_t) request[2] << 16 | (uint32_t) request[3] << 24, request[4]);
+    }
+  }
+}